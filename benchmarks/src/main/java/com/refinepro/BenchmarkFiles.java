@@ -0,0 +1,111 @@
+package com.refinepro;
+
+import com.google.refine.importers.LineBasedFormatGuesser;
+import com.google.refine.importers.LineBasedImporter;
+import com.google.refine.importers.SeparatorBasedImporter;
+import com.google.refine.importers.TextFormatGuesser;
+import com.google.refine.importing.ImportingManager;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Synthetic workspace content shared by the benchmarks.
+ */
+public class BenchmarkFiles {
+
+    private BenchmarkFiles() {
+    }
+
+    public static Path createTempDir(String name) throws IOException {
+        return Files.createTempDirectory("local-file-system-" + name);
+    }
+
+    /**
+     * Write a CSV file of at least {@code size} bytes.
+     */
+    public static Path writeCsv(Path file, long size) throws IOException {
+        byte[] header = "id,name,city,amount,date\n".getBytes(StandardCharsets.UTF_8);
+        try (OutputStream os = Files.newOutputStream(file)) {
+            os.write(header);
+            long written = header.length;
+            for (long i = 0; written < size; i++) {
+                byte[] row = (i + ",name " + i + ",city " + (i % 97) + "," + (i * 31 % 10000) / 100.0
+                        + ",2020-01-" + (1 + i % 28) + "\n").getBytes(StandardCharsets.UTF_8);
+                os.write(row);
+                written += row.length;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Create {@code count} small files spread over sub folders of 1000 files each.
+     */
+    public static void createFiles(Path root, int count) throws IOException {
+        byte[] content = "a,b\n1,2\n".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < count; i++) {
+            Path dir = root.resolve("dir" + (i / 1000));
+            if (i % 1000 == 0) {
+                Files.createDirectories(dir);
+            }
+            Files.write(dir.resolve("file" + i + (i % 2 == 0 ? ".csv" : ".tsv")), content);
+        }
+    }
+
+    public static OutputStream nullOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+    }
+
+    public static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Register the text formats and guessers the way the OpenRefine core module does at start up.
+     */
+    public static void registerCoreFormats() {
+        ImportingManager.registerFormat("text", "Text files");
+        ImportingManager.registerFormat("text/line-based", "Line-based text files", "LinesParserUI",
+                new LineBasedImporter());
+        ImportingManager.registerFormat("text/line-based/*sv", "CSV / TSV / separator-based files",
+                "SeparatorBasedParserUI", new SeparatorBasedImporter());
+        ImportingManager.registerFormat("binary", "Binary files");
+
+        ImportingManager.registerExtension(".txt", "text/line-based");
+        ImportingManager.registerExtension(".csv", "text/line-based/*sv");
+        ImportingManager.registerExtension(".tsv", "text/line-based/*sv");
+
+        ImportingManager.registerMimeType("text/plain", "text/line-based");
+        ImportingManager.registerMimeType("text/csv", "text/line-based/*sv");
+
+        ImportingManager.registerFormatGuesser("text", new TextFormatGuesser());
+        ImportingManager.registerFormatGuesser("text/line-based", new LineBasedFormatGuesser());
+    }
+}
@@ -0,0 +1,76 @@
+package com.refinepro;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.refine.importing.ImportingJob;
+import com.google.refine.util.JSONUtilities;
+import com.google.refine.util.ParsingUtilities;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * guessBetterFormat and rankFormats with the OpenRefine text guessers, on a fresh file or on a file
+ * whose guess is already cached. Only the text and line based guessers and formats are registered, by
+ * {@link BenchmarkFiles#registerCoreFormats}, not what OpenRefine and its other extensions register at startup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FormatGuessBenchmark {
+
+    @Param({"1", "64"})
+    public int sizeMB;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private Path dir;
+    private File file;
+    private ImportingJob job;
+    private ArrayNode fileRecords;
+    private long modified;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkFiles.registerCoreFormats();
+        dir = BenchmarkFiles.createTempDir("guess");
+        job = new ImportingJob(1L, dir.resolve("job").toFile());
+        file = BenchmarkFiles.writeCsv(job.getRawDataDir().toPath().resolve("data.csv"), sizeMB * 1024L * 1024L).toFile();
+        modified = file.lastModified();
+
+        ObjectNode fileRecord = ParsingUtilities.mapper.createObjectNode();
+        JSONUtilities.safePut(fileRecord, "fileName", "data.csv");
+        JSONUtilities.safePut(fileRecord, "location", "data.csv");
+        JSONUtilities.safePut(fileRecord, "sourcePath", file.getAbsolutePath());
+        fileRecords = ParsingUtilities.mapper.createArrayNode();
+        JSONUtilities.append(fileRecords, fileRecord);
+    }
+
+    @Setup(Level.Invocation)
+    public void invalidate() {
+        if (!cached) {
+            // a new modification time is a new file for the guess cache
+            file.setLastModified(modified += 1000L);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public ArrayNode guessAndRank() {
+        String bestFormat = LocalImportingUtilities.guessBetterFormat(job, fileRecords, "text");
+        ArrayNode rankedFormats = ParsingUtilities.mapper.createArrayNode();
+        LocalImportingUtilities.rankFormats(job, bestFormat, rankedFormats);
+        return rankedFormats;
+    }
+}
@@ -0,0 +1,78 @@
+package com.refinepro;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.refine.importing.ImportingUtilities;
+import com.google.refine.util.ParsingUtilities;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The copy step of load-raw-data: one workspace file brought into a fresh raw data folder.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RetrieveContentBenchmark {
+
+    @Param({"1", "16", "256"})
+    public int sizeMB;
+
+    @Param({"transfer", "link"})
+    public String ingestStrategy;
+
+    private Path workspace;
+    private Path rawDataDir;
+    private Properties parameters;
+
+    private static final ImportingUtilities.Progress NO_PROGRESS = new ImportingUtilities.Progress() {
+        @Override
+        public void setProgress(String message, int percent) {
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return false;
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workspace = BenchmarkFiles.createTempDir("workspace");
+        BenchmarkFiles.writeCsv(workspace.resolve("data.csv"), sizeMB * 1024L * 1024L);
+        parameters = new Properties();
+        parameters.setProperty("localFile", "data.csv");
+        parameters.setProperty("ingestStrategy", ingestStrategy);
+    }
+
+    @Setup(Level.Invocation)
+    public void createRawDataDir() throws IOException {
+        // next to the workspace, so a hard link is possible
+        rawDataDir = Files.createTempDirectory(workspace.getParent(), "raw-data");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteRawDataDir() throws IOException {
+        BenchmarkFiles.deleteRecursively(rawDataDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFiles.deleteRecursively(workspace);
+    }
+
+    @Benchmark
+    public ObjectNode retrieve() throws Exception {
+        ObjectNode retrievalRecord = ParsingUtilities.mapper.createObjectNode();
+        LocalImportingUtilities.retrieveContentFromPostRequest(workspace.toFile(), parameters, "benchmark",
+                rawDataDir.toFile(), retrievalRecord, NO_PROGRESS);
+        return retrievalRecord;
+    }
+}
@@ -0,0 +1,64 @@
+package com.refinepro;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.refine.util.ParsingUtilities;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing of a workspace of 1k to 100k files, as done by the list-documents sub command.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WorkspaceListingBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int files;
+
+    @Param({"name", "mtime"})
+    public String sort;
+
+    private Path root;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = BenchmarkFiles.createTempDir("listing");
+        BenchmarkFiles.createFiles(root, files);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFiles.deleteRecursively(root);
+    }
+
+    @Benchmark
+    public int firstPage() throws IOException {
+        return list(500);
+    }
+
+    @Benchmark
+    public int everyFile() throws IOException {
+        return list(0);
+    }
+
+    private int list(int limit) throws IOException {
+        WorkspaceListing.Result result = new WorkspaceListing(root)
+                .setMaxDepth(2)
+                .setSort(WorkspaceListing.Sort.fromString(sort), false)
+                .setPage(0, limit)
+                .list();
+        try (JsonGenerator writer = ParsingUtilities.mapper.getFactory().createGenerator(BenchmarkFiles.nullOutputStream())) {
+            writer.writeStartArray();
+            LocalFileSystemImportingController.listFiles(result, writer, false);
+            writer.writeEndArray();
+        }
+        return result.total;
+    }
+}
@@ -0,0 +1,101 @@
+package com.refinepro.commands;
+
+import com.google.refine.ProjectManager;
+import com.google.refine.ProjectMetadata;
+import com.google.refine.browsing.Engine;
+import com.google.refine.exporters.CsvExporter;
+import com.google.refine.exporters.Exporter;
+import com.google.refine.exporters.HtmlTableExporter;
+import com.google.refine.io.FileProjectManager;
+import com.google.refine.model.*;
+import com.refinepro.BenchmarkFiles;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Workspace export of projects of 10k to 1M rows, one format written to one file by writeExport with the buffered,
+ * optionally gzipped stream of the workspace-export command and an engine selecting every row. The rest of the
+ * command is left out: the export job and its scheduler slots, the temporary file and its rename, the single pass
+ * feeding several formats and the facets of a request. The csv and tsv exporters need the opencsv fork shipped with
+ * OpenRefine on the class path, see the README, so only html runs by default.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class WorkspaceExportBenchmark {
+
+    private static final int COLUMNS = 8;
+
+    @Param({"10000", "100000", "1000000"})
+    public int rows;
+
+    @Param({"html"})
+    public String format;
+
+    @Param({"none", "gzip"})
+    public String compression;
+
+    private Path dir;
+    private Path file;
+    private Project project;
+    private Exporter exporter;
+    private Properties params;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ModelException {
+        dir = BenchmarkFiles.createTempDir("export");
+        file = dir.resolve("export." + format);
+        project = new Project();
+        for (int c = 0; c < COLUMNS; c++) {
+            project.columnModel.addColumn(c, new Column(c, "column " + c), false);
+        }
+        for (int r = 0; r < rows; r++) {
+            Row row = new Row(COLUMNS);
+            for (int c = 0; c < COLUMNS; c++) {
+                row.setCell(c, new Cell(c % 2 == 0 ? "value " + r + "/" + c : (Serializable) Integer.valueOf(r * c), null));
+            }
+            project.rows.add(row);
+        }
+        project.update();
+
+        // exporters read the project name from the project manager
+        FileProjectManager.initialize(dir.resolve("workspace").toFile());
+        ProjectMetadata metadata = new ProjectMetadata();
+        metadata.setName("benchmark");
+        ProjectManager.singleton.registerProject(project, metadata);
+
+        // the exporters are created directly, the registry would load every exporter and its dependencies
+        if ("html".equals(format)) {
+            exporter = new HtmlTableExporter();
+        } else {
+            exporter = "tsv".equals(format) ? new CsvExporter('\t') : new CsvExporter();
+        }
+        params = new Properties();
+        params.setProperty("compression", compression);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteExport() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFiles.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public long export() throws IOException {
+        WorkspaceExportCommand.writeExport(project, new Engine(project), exporter, params, file);
+        return Files.size(file);
+    }
+}
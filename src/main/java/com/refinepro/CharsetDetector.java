@@ -0,0 +1,107 @@
+package com.refinepro;
+
+/**
+ * Guesses the character set of a file from its first bytes.
+ */
+public class CharsetDetector {
+
+    public static final String UTF_8 = "UTF-8";
+    public static final String UTF_16LE = "UTF-16LE";
+    public static final String UTF_16BE = "UTF-16BE";
+    public static final String FALLBACK = "windows-1252";
+
+    private CharsetDetector() {
+    }
+
+    /**
+     * @param length number of valid bytes in {@code sample}
+     * @return the byte order mark charset, UTF-16 when every other byte is mostly zero, UTF-8 when the sample is
+     * valid UTF-8, {@link #FALLBACK} otherwise
+     */
+    public static String detect(byte[] sample, int length) {
+        String bom = detectBom(sample, length);
+        if (bom != null) {
+            return bom;
+        }
+        // zero bytes are valid UTF-8, so UTF-16 is ruled out first
+        String utf16 = detectUtf16(sample, length);
+        if (utf16 != null) {
+            return utf16;
+        }
+        return isUtf8(sample, length) ? UTF_8 : FALLBACK;
+    }
+
+    static String detectBom(byte[] b, int length) {
+        if (length >= 3 && (b[0] & 0xFF) == 0xEF && (b[1] & 0xFF) == 0xBB && (b[2] & 0xFF) == 0xBF) {
+            return UTF_8;
+        }
+        if (length >= 2 && (b[0] & 0xFF) == 0xFF && (b[1] & 0xFF) == 0xFE) {
+            return UTF_16LE;
+        }
+        if (length >= 2 && (b[0] & 0xFF) == 0xFE && (b[1] & 0xFF) == 0xFF) {
+            return UTF_16BE;
+        }
+        return null;
+    }
+
+    /**
+     * UTF-16 without byte order mark: text in a latin script has a zero high byte in most of its code units, so
+     * one side of the byte pairs is mostly zero and the other almost never.
+     */
+    static String detectUtf16(byte[] b, int length) {
+        int pairs = length / 2;
+        if (pairs < 2) {
+            return null;
+        }
+        int evenZeros = 0;
+        int oddZeros = 0;
+        for (int i = 0; i + 1 < length; i += 2) {
+            if (b[i] == 0) {
+                evenZeros++;
+            }
+            if (b[i + 1] == 0) {
+                oddZeros++;
+            }
+        }
+        if (oddZeros * 10 >= pairs * 3 && evenZeros * 20 <= pairs) {
+            return UTF_16LE;
+        }
+        if (evenZeros * 10 >= pairs * 3 && oddZeros * 20 <= pairs) {
+            return UTF_16BE;
+        }
+        return null;
+    }
+
+    /**
+     * A multi byte sequence cut by the end of the sample is accepted.
+     */
+    static boolean isUtf8(byte[] b, int length) {
+        int i = 0;
+        while (i < length) {
+            int c = b[i] & 0xFF;
+            int continuation;
+            if (c < 0x80) {
+                i++;
+                continue;
+            } else if (c >= 0xC2 && c <= 0xDF) {
+                continuation = 1;
+            } else if (c >= 0xE0 && c <= 0xEF) {
+                continuation = 2;
+            } else if (c >= 0xF0 && c <= 0xF4) {
+                continuation = 3;
+            } else {
+                return false;
+            }
+            for (int j = 1; j <= continuation; j++) {
+                if (i + j >= length) {
+                    return true;
+                }
+                if ((b[i + j] & 0xC0) != 0x80) {
+                    return false;
+                }
+            }
+            i += continuation + 1;
+        }
+        return true;
+    }
+}
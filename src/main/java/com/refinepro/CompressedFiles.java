@@ -0,0 +1,185 @@
+package com.refinepro;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Gzip files kept compressed in the raw data dir, read through a decompressor instead of being uncompressed to disk
+ * first. Bzip2 files are still uncompressed to disk, OpenRefine keeps their decompressor to itself.
+ */
+public class CompressedFiles {
+
+    public static final String GZIP = "gzip";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    // buffers inflated ahead of the parser
+    private static final int READ_AHEAD_BUFFERS = 16;
+
+    private CompressedFiles() {
+    }
+
+    /**
+     * The compression of {@code file}, with the same gzip checks as {@code ImportingUtilities.tryOpenAsCompressedFile}.
+     *
+     * @return {@link #GZIP} or null for any other file
+     */
+    public static String getCompression(File file, String mimeType, String contentEncoding) {
+        if (file.getName().endsWith(".gz")
+                || "gzip".equals(contentEncoding)
+                || "x-gzip".equals(contentEncoding)
+                || "application/x-gzip".equals(mimeType)) {
+            return GZIP;
+        }
+        return null;
+    }
+
+    /**
+     * The name of the file once uncompressed.
+     */
+    public static String stripExtension(String fileName) {
+        return fileName.endsWith(".gz") ? fileName.substring(0, fileName.length() - 3) : fileName;
+    }
+
+    /**
+     * The uncompressed content of {@code file}, inflated on the calling thread.
+     */
+    public static InputStream open(File file, String compression) throws IOException {
+        return decompress(new FileInputStream(file), compression);
+    }
+
+    /**
+     * The uncompressed content of {@code file}, inflated on another thread up to a few buffers ahead of the reader,
+     * so decompression and parsing overlap.
+     *
+     * @param track wraps the compressed stream, to follow how much of the file was read
+     */
+    public static InputStream openReadAhead(File file, String compression, Function<InputStream, InputStream> track)
+            throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            return new ReadAheadInputStream(decompress(track.apply(is), compression), file.getName());
+        } catch (IOException | RuntimeException e) {
+            is.close();
+            throw e;
+        }
+    }
+
+    private static InputStream decompress(InputStream is, String compression) throws IOException {
+        try {
+            if (GZIP.equals(compression)) {
+                return new GZIPInputStream(is, 64 * 1024);
+            }
+            throw new IOException("Unknown compression " + compression);
+        } catch (IOException | RuntimeException e) {
+            is.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the buffers filled by a thread from the wrapped stream. Closing it stops the thread.
+     */
+    private static class ReadAheadInputStream extends InputStream {
+        private static final byte[] END = new byte[0];
+
+        private final BlockingQueue<byte[]> filled = new ArrayBlockingQueue<>(READ_AHEAD_BUFFERS);
+        private final Thread thread;
+        private volatile IOException error;
+        private volatile boolean closed;
+        private byte[] buffer = new byte[0];
+        private int position;
+        private boolean end;
+
+        ReadAheadInputStream(final InputStream in, String name) {
+            thread = new Thread(() -> {
+                try (InputStream is = in) {
+                    while (!closed) {
+                        byte[] b = new byte[BUFFER_SIZE];
+                        int length = 0;
+                        int n;
+                        while (length < b.length && (n = is.read(b, length, b.length - length)) > 0) {
+                            length += n;
+                        }
+                        if (length > 0) {
+                            filled.put(length == b.length ? b : Arrays.copyOf(b, length));
+                        }
+                        if (length < b.length) {
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = new IOException(e);
+                } catch (InterruptedException e) {
+                    // closed
+                    return;
+                }
+                try {
+                    filled.put(END);
+                } catch (InterruptedException e) {
+                    // closed
+                }
+            }, "inflate-" + name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == buffer.length) {
+                if (end) {
+                    return -1;
+                }
+                try {
+                    buffer = filled.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while inflating");
+                }
+                position = 0;
+                if (buffer == END) {
+                    end = true;
+                    if (error != null) {
+                        throw error;
+                    }
+                }
+            }
+            int n = Math.min(len, buffer.length - position);
+            System.arraycopy(buffer, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.length - position;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                thread.interrupt();
+                filled.clear();
+            }
+        }
+    }
+}
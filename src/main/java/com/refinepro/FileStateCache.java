@@ -0,0 +1,74 @@
+package com.refinepro;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of values computed from a file, an entry is dropped as soon as the file size or
+ * modification time no longer match the ones seen when it was stored.
+ */
+public class FileStateCache<V> {
+
+    private static class Entry<V> {
+        final long size;
+        final long modified;
+        final V value;
+
+        Entry(long size, long modified, V value) {
+            this.size = size;
+            this.modified = modified;
+            this.value = value;
+        }
+    }
+
+    private final Map<String, Entry<V>> entries;
+
+    public FileStateCache(final int capacity) {
+        this.entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @param key what was computed from the file, several values can be cached for one file
+     */
+    public V get(File file, String key) {
+        String cacheKey = cacheKey(file, key);
+        long size = file.length();
+        long modified = file.lastModified();
+        synchronized (entries) {
+            Entry<V> entry = entries.get(cacheKey);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.size != size || entry.modified != modified) {
+                entries.remove(cacheKey);
+                return null;
+            }
+            return entry.value;
+        }
+    }
+
+    public void put(File file, String key, V value) {
+        Entry<V> entry = new Entry<>(file.length(), file.lastModified(), value);
+        synchronized (entries) {
+            entries.put(cacheKey(file, key), entry);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private static String cacheKey(File file, String key) {
+        return file.getAbsolutePath() + '\u0000' + key;
+    }
+}
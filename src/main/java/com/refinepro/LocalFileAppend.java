@@ -0,0 +1,505 @@
+package com.refinepro;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.refine.ProjectManager;
+import com.google.refine.ProjectMetadata;
+import com.google.refine.history.HistoryEntry;
+import com.google.refine.importers.ImportingParserBase;
+import com.google.refine.importing.ImportingJob;
+import com.google.refine.importing.ImportingManager;
+import com.google.refine.importing.ImportingUtilities;
+import com.google.refine.model.Cell;
+import com.google.refine.model.Column;
+import com.google.refine.model.Project;
+import com.google.refine.model.Row;
+import com.google.refine.process.QuickHistoryEntryProcess;
+import com.google.refine.util.JSONUtilities;
+import com.google.refine.util.ParsingUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Appends the lines written to a workspace text file since its project was created, or since the last append.
+ * The project metadata keeps the source path, the byte offset already consumed and fingerprints of the consumed
+ * bytes; a source file that shrank, was replaced or was rewritten is reported instead of being appended.
+ */
+public class LocalFileAppend {
+
+    private static final Logger logger = LoggerFactory.getLogger("LocalFileAppend");
+
+    public static final String METADATA_KEY = "localFileAppend";
+
+    public static final String NOT_APPENDABLE = "not-appendable";
+    public static final String TRUNCATED = "truncated";
+    public static final String ROTATED = "rotated";
+    public static final String INCOMPLETE_LINE = "incomplete-line";
+    public static final String INCOMPATIBLE = "incompatible";
+    public static final String BUSY = "busy";
+
+    // bytes fingerprinted at the start of the file and right before the offset
+    private static final int HEAD_SIZE = 64 * 1024;
+    private static final int TAIL_SIZE = 4 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Set<Long> running = ConcurrentHashMap.newKeySet();
+
+    private LocalFileAppend() {
+    }
+
+    public static class AppendException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final String reason;
+
+        AppendException(String reason, String message) {
+            super(message);
+            this.reason = reason;
+        }
+    }
+
+    public static class Result {
+        /** null when no complete line was added to the file */
+        public final HistoryEntry historyEntry;
+        public final int rowsAppended;
+        public final long offset;
+
+        Result(HistoryEntry historyEntry, int rowsAppended, long offset) {
+            this.historyEntry = historyEntry;
+            this.rowsAppended = rowsAppended;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * The append state of the project about to be created by {@code job}, read before the file is parsed.
+     * Only a single line based text file, ingested as is from the workspace, can be appended to.
+     *
+     * @return null when the project will not support appending
+     */
+    static ObjectNode prepare(ImportingJob job, String format, ObjectNode options) {
+        if (format == null || !format.startsWith("text/line-based")) {
+            return null;
+        }
+        List<ObjectNode> fileRecords = job.getSelectedFileRecords();
+        if (fileRecords.size() != 1) {
+            return null;
+        }
+        ObjectNode fileRecord = fileRecords.get(0);
+        String sourcePath = JSONUtilities.getString(fileRecord, "sourcePath", null);
+        if (sourcePath == null || fileRecord.has("archiveFileName") || fileRecord.has("compression")) {
+            return null;
+        }
+        String encoding = getEncoding(fileRecord, options);
+        if (!isNewlineSingleByte(encoding)) {
+            // the offset is moved to line ends found byte by byte
+            return null;
+        }
+
+        File file = ImportingUtilities.getFile(job, fileRecord);
+        File source = new File(sourcePath);
+        try {
+            long offset = file.length();
+            if (!source.isFile() || source.length() < offset) {
+                return null;
+            }
+            long headLength = Math.min(offset, HEAD_SIZE);
+            String headHash;
+            String tailHash;
+            boolean partialLastLine;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                headHash = hash(channel, 0L, headLength);
+                tailHash = hash(channel, Math.max(0L, offset - TAIL_SIZE), offset);
+                partialLastLine = offset > 0 && byteAt(channel, offset - 1) != '\n';
+            }
+            try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                // an uncompressed copy does not start like its source
+                if (!headHash.equals(hash(channel, 0L, headLength))) {
+                    return null;
+                }
+            }
+
+            ObjectNode state = ParsingUtilities.mapper.createObjectNode();
+            JSONUtilities.safePut(state, "sourcePath", source.getAbsolutePath());
+            JSONUtilities.safePut(state, "fileSource", ImportingUtilities.getFileSource(fileRecord));
+            JSONUtilities.safePut(state, "format", format);
+            JSONUtilities.safePut(state, "encoding", encoding);
+            JSONUtilities.safePut(state, "options", options.deepCopy());
+            JSONUtilities.safePut(state, "offset", offset);
+            JSONUtilities.safePut(state, "fileKey", getFileKey(source));
+            JSONUtilities.safePut(state, "headLength", headLength);
+            JSONUtilities.safePut(state, "headHash", headHash);
+            JSONUtilities.safePut(state, "tailHash", tailHash);
+            JSONUtilities.safePut(state, "partialLastLine", partialLastLine);
+            return state;
+        } catch (IOException e) {
+            logger.warn("Cannot prepare appending to " + sourcePath + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Store the state of {@link #prepare} in the created project, with the columns the lines were parsed into.
+     */
+    static void track(ImportingJob job, long projectID, ObjectNode state) {
+        Project project = ProjectManager.singleton.getProject(projectID);
+        ProjectMetadata metadata = ProjectManager.singleton.getProjectMetadata(projectID);
+        if (project == null || metadata == null) {
+            return;
+        }
+
+        File file = ImportingUtilities.getFile(job, job.getSelectedFileRecords().get(0));
+        if (file.length() != state.path("offset").asLong()) {
+            // a linked file grew while it was parsed, the lines read are unknown
+            ObjectNode error = ParsingUtilities.mapper.createObjectNode();
+            JSONUtilities.safePut(error, "sourcePath", JSONUtilities.getString(state, "sourcePath", null));
+            JSONUtilities.safePut(error, "error", "The file was written to while the project was created");
+            metadata.setCustomMetadata(METADATA_KEY, error.toString());
+            return;
+        }
+
+        ArrayNode columns = ParsingUtilities.mapper.createArrayNode();
+        for (Column column : project.columnModel.columns) {
+            columns.add(column.getCellIndex());
+        }
+        JSONUtilities.safePut(state, "columns", columns);
+        metadata.setCustomMetadata(METADATA_KEY, state.toString());
+    }
+
+    /**
+     * Parse the complete lines added to the source file since the offset and append them to the project.
+     * A line still being written is left for the next append. The file is read in a slot of its workspace root
+     * taken for {@code user}, within the root bandwidth.
+     */
+    public static Result append(Project project, File workspaceFolder, String user) throws IOException {
+        ProjectMetadata metadata = ProjectManager.singleton.getProjectMetadata(project.id);
+        Object stored = metadata == null ? null : metadata.getCustomMetadata(METADATA_KEY);
+        ObjectNode state = stored == null ? null : ParsingUtilities.evaluateJsonStringToObjectNode(stored.toString());
+        if (state == null) {
+            throw new AppendException(NOT_APPENDABLE, "The project was not created from a single workspace text file");
+        }
+        String error = JSONUtilities.getString(state, "error", null);
+        if (error != null) {
+            throw new AppendException(NOT_APPENDABLE, error);
+        }
+
+        if (project.processManager.hasPending()) {
+            // an append queued behind them would leave the offset behind until it runs
+            throw new AppendException(BUSY, "Wait for the operations running on this project");
+        }
+        if (!running.add(project.id)) {
+            throw new AppendException(BUSY, "Rows are already being appended to this project");
+        }
+        LocalFileSystemMetrics.Timer timer = LocalFileSystemMetrics.start("append-rows");
+        try {
+            Result result = append(project, workspaceFolder, user, stored.toString(), state, timer);
+            timer.success();
+            return result;
+        } finally {
+            timer.stop();
+            running.remove(project.id);
+        }
+    }
+
+    private static Result append(Project project, File workspaceFolder, String user, String oldState,
+                                 ObjectNode state, LocalFileSystemMetrics.Timer timer) throws IOException {
+        String sourcePath = JSONUtilities.getString(state, "sourcePath", "");
+        Properties parameters = new Properties();
+        parameters.setProperty("localFile", sourcePath);
+        // the project may come from any workspace root
+        WorkspaceRoot root = WorkspaceRoot.of(new File(sourcePath));
+        File source;
+        try {
+            source = LocalImportingUtilities.resolveSourceFiles(root == null ? workspaceFolder : root.getFolder(),
+                    parameters).get(0);
+        } catch (FileNotFoundException e) {
+            throw new AppendException(ROTATED, "The source file " + sourcePath + " no longer exists");
+        }
+
+        WorkspaceScheduler.Permit permit;
+        try {
+            permit = root == null ? null : WorkspaceScheduler.acquire(root, WorkspaceScheduler.Kind.READ, user);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to read " + sourcePath);
+        } catch (RejectedExecutionException e) {
+            throw new AppendException(BUSY, e.getMessage());
+        }
+        try {
+            return append(project, source, root == null ? null : root.getBandwidth(), oldState, state, timer);
+        } finally {
+            if (permit != null) {
+                permit.close();
+            }
+        }
+    }
+
+    private static Result append(Project project, File source, WorkspaceRoot.Bandwidth bandwidth, String oldState,
+                                 ObjectNode state, LocalFileSystemMetrics.Timer timer) throws IOException {
+        String sourcePath = JSONUtilities.getString(state, "sourcePath", "");
+        BasicFileAttributes attributes = Files.readAttributes(source.toPath(), BasicFileAttributes.class);
+        String fileKey = JSONUtilities.getString(state, "fileKey", null);
+        if (fileKey != null && !fileKey.equals(String.valueOf(attributes.fileKey()))) {
+            throw new AppendException(ROTATED, "The source file " + sourcePath + " was replaced since the last import");
+        }
+        long offset = state.path("offset").asLong();
+        long size = attributes.size();
+        if (size < offset) {
+            throw new AppendException(TRUNCATED, "The source file " + sourcePath + " is " + size
+                    + " bytes long, shorter than the " + offset + " bytes already imported");
+        }
+
+        try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            long headLength = state.path("headLength").asLong();
+            if (bandwidth != null) {
+                // the fingerprints and the new bytes, scanned for their last line end then parsed
+                bandwidth.acquire(headLength + Math.min(offset, TAIL_SIZE) + 2 * (size - offset));
+            }
+            if (!hash(channel, 0L, headLength).equals(JSONUtilities.getString(state, "headHash", null))
+                    || !hash(channel, Math.max(0L, offset - TAIL_SIZE), offset).equals(JSONUtilities.getString(state, "tailHash", null))) {
+                throw new AppendException(ROTATED, "The source file " + sourcePath + " was rewritten since the last import");
+            }
+
+            long end = lastLineEnd(channel, offset, size);
+            if (end == offset) {
+                return new Result(null, 0, offset);
+            }
+            long start = offset;
+            if (state.path("partialLastLine").asBoolean()) {
+                // the last line imported had no line end yet, it must have been complete
+                start = skipLineEnd(channel, offset);
+                if (start < 0) {
+                    throw new AppendException(INCOMPLETE_LINE, "The last line imported from " + sourcePath
+                            + " was still being written, create the project again to read it whole");
+                }
+            }
+            timer.read(end - start);
+
+            List<Row> rows = parse(project, channel, start, end, state);
+
+            ObjectNode newState = state.deepCopy();
+            JSONUtilities.safePut(newState, "offset", end);
+            JSONUtilities.safePut(newState, "partialLastLine", false);
+            JSONUtilities.safePut(newState, "tailHash", hash(channel, Math.max(0L, end - TAIL_SIZE), end));
+            if (headLength < HEAD_SIZE) {
+                headLength = Math.min(end, HEAD_SIZE);
+                JSONUtilities.safePut(newState, "headLength", headLength);
+                JSONUtilities.safePut(newState, "headHash", hash(channel, 0L, headLength));
+            }
+
+            final RowAppendChange change = new RowAppendChange(rows, oldState, newState.toString());
+            String description = "Append " + rows.size() + " rows from " + source.getName();
+            HistoryEntry historyEntry;
+            try {
+                historyEntry = project.processManager.queueProcess(new QuickHistoryEntryProcess(project, description) {
+                    @Override
+                    protected HistoryEntry createHistoryEntry(long historyEntryID) throws Exception {
+                        return new HistoryEntry(historyEntryID, _project, _briefDescription, null, change);
+                    }
+                });
+            } catch (Exception e) {
+                throw new IOException("Cannot append the rows: " + e.getMessage(), e);
+            }
+            return new Result(historyEntry, rows.size(), end);
+        }
+    }
+
+    /**
+     * Parse the bytes between {@code start} and {@code end} with the format and options the project was created
+     * with, minus the header and skipped lines, and lay their cells out like the columns of the first import.
+     */
+    private static List<Row> parse(Project project, FileChannel channel, long start, long end, ObjectNode state)
+            throws IOException {
+        String format = JSONUtilities.getString(state, "format", null);
+        ImportingManager.Format record = ImportingManager.formatToRecord.get(format);
+        if (record == null || !(record.parser instanceof ImportingParserBase)) {
+            throw new AppendException(NOT_APPENDABLE, "The format " + format + " is no longer available");
+        }
+        ObjectNode options = JSONUtilities.getObject(state, "options").deepCopy();
+        JSONUtilities.safePut(options, "ignoreLines", 0);
+        JSONUtilities.safePut(options, "headerLines", 0);
+        JSONUtilities.safePut(options, "skipDataLines", 0);
+
+        Project tail = new Project();
+        List<Exception> exceptions = new ArrayList<>();
+        // the parser only checks the job for cancellation, it is not registered with the importing manager
+        ImportingJob job = new ImportingJob(0L, Files.createTempDirectory("local-file-append").toFile());
+        try (Reader reader = new InputStreamReader(new BufferedInputStream(new RangeInputStream(channel, start, end), BUFFER_SIZE),
+                Charset.forName(JSONUtilities.getString(state, "encoding", "UTF-8")))) {
+            ((ImportingParserBase) record.parser).parseOneFile(tail, new ProjectMetadata(), job,
+                    JSONUtilities.getString(state, "fileSource", null), reader, -1, options, exceptions);
+        } finally {
+            job.dispose();
+        }
+        if (!exceptions.isEmpty()) {
+            throw new IOException("Cannot parse the new lines: " + exceptions.get(0).getMessage(), exceptions.get(0));
+        }
+
+        JsonNode columns = state.path("columns");
+        if (tail.columnModel.columns.size() > columns.size()) {
+            throw new AppendException(INCOMPATIBLE, "The new lines have " + tail.columnModel.columns.size()
+                    + " columns, the project was created with " + columns.size());
+        }
+        int width = project.columnModel.getMaxCellIndex() + 1;
+        List<Row> rows = new ArrayList<>(tail.rows.size());
+        for (Row tailRow : tail.rows) {
+            Row row = new Row(width);
+            for (int i = 0; i < tail.columnModel.columns.size(); i++) {
+                Cell cell = tailRow.getCell(tail.columnModel.columns.get(i).getCellIndex());
+                int cellIndex = columns.get(i).asInt();
+                // cells of the columns removed since are dropped
+                if (cell != null && project.columnModel.getColumnByCellIndex(cellIndex) != null) {
+                    row.setCell(cellIndex, cell);
+                }
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static String getEncoding(ObjectNode fileRecord, ObjectNode options) {
+        String encoding = JSONUtilities.getString(options, "encoding", null);
+        if (encoding == null || encoding.isEmpty()) {
+            encoding = LocalImportingUtilities.getEncoding(fileRecord);
+        }
+        return encoding == null || encoding.isEmpty() ? "UTF-8" : encoding;
+    }
+
+    static boolean isNewlineSingleByte(String encoding) {
+        try {
+            byte[] newline = "\n".getBytes(Charset.forName(encoding));
+            return newline.length == 1 && newline[0] == '\n';
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static String getFileKey(File file) throws IOException {
+        Object fileKey = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        return fileKey == null ? null : fileKey.toString();
+    }
+
+    private static int byteAt(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        return channel.read(buffer, position) == 1 ? buffer.get(0) : -1;
+    }
+
+    /**
+     * @return the position after the line end at {@code position}, -1 when there is none
+     */
+    private static long skipLineEnd(FileChannel channel, long position) throws IOException {
+        int c = byteAt(channel, position);
+        if (c == '\n') {
+            return position + 1;
+        }
+        if (c == '\r' && byteAt(channel, position + 1) == '\n') {
+            return position + 2;
+        }
+        return -1L;
+    }
+
+    /**
+     * @return the position after the last {@code \n} between {@code from} and {@code to}, {@code from} when none
+     */
+    private static long lastLineEnd(FileChannel channel, long from, long to) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long blockEnd = to;
+        while (blockEnd > from) {
+            long blockStart = Math.max(from, blockEnd - BUFFER_SIZE);
+            buffer.clear();
+            buffer.limit((int) (blockEnd - blockStart));
+            readFully(channel, buffer, blockStart);
+            for (int i = buffer.limit() - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return blockStart + i + 1;
+                }
+            }
+            blockEnd = blockStart;
+        }
+        return from;
+    }
+
+    private static String hash(FileChannel channel, long from, long to) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long position = from;
+        while (position < to) {
+            buffer.clear();
+            buffer.limit((int) Math.min(BUFFER_SIZE, to - position));
+            readFully(channel, buffer, position);
+            buffer.flip();
+            position += buffer.remaining();
+            digest.update(buffer);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("The file is shorter than " + (position + buffer.limit()) + " bytes");
+            }
+        }
+    }
+
+    /**
+     * The bytes between two positions of a channel, read without moving the channel position.
+     */
+    private static class RangeInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        RangeInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.refinepro;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded background pools, so long running imports and exports don't pin servlet threads.
+ */
+public class LocalFileSystemExecutors {
+
+    private LocalFileSystemExecutors() {
+    }
+
+    /**
+     * @param name      prefix of the thread names
+     * @param threads   maximum number of concurrent tasks
+     * @param queueSize maximum number of waiting tasks, further submissions are rejected
+     */
+    public static ThreadPoolExecutor newBoundedExecutor(final String name, int threads, int queueSize) {
+        final AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                Math.max(1, threads), Math.max(1, threads), 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                runnable -> {
+                    Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
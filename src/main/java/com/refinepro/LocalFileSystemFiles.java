@@ -0,0 +1,64 @@
+package com.refinepro;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * File tree helpers shared by the raw data cache, the resumable copies and the workspace exports.
+ */
+public class LocalFileSystemFiles {
+
+    private static final Logger logger = LoggerFactory.getLogger("LocalFileSystemFiles");
+
+    private LocalFileSystemFiles() {
+    }
+
+    /**
+     * Total size of the files under {@code path}, what could be visited when part of it can't be read.
+     */
+    public static long sizeOf(Path path) {
+        final long[] size = {0L};
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    size[0] += attrs.size();
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            // count what was visited
+        }
+        return size[0];
+    }
+
+    /**
+     * Delete {@code path} and everything under it, a failure is logged and leaves the rest in place.
+     */
+    public static void deleteRecursively(Path path) {
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.deleteIfExists(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    Files.deleteIfExists(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            logger.warn("Cannot delete " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -19,10 +19,13 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 public class LocalFileSystemImportingController implements ImportingController {
 
@@ -30,11 +33,23 @@ public class LocalFileSystemImportingController implements ImportingController {
 
     protected RefineServlet servlet;
 
-    private static final String LOCAL_FOLDER = System.getenv("EXT_LOCAL_FILE_SYSTEM") == null || System.getenv("EXT_LOCAL_FILE_SYSTEM").isEmpty() ? Paths.get(System.getProperty("user.home"), "Downloads").toString() : System.getenv("EXT_LOCAL_FILE_SYSTEM");
+    private static final int DEFAULT_PAGE_SIZE = 500;
+
+    private static final int DEFAULT_RECURSIVE_DEPTH = 5;
+
+    private static final List<String> SUB_COMMANDS = Arrays.asList("list-documents", "file-metadata", "load-raw-data",
+            "update-file-selection", "initialize-parser-ui", "update-format-and-options", "create-project");
+
+    private static final ExecutorService loadExecutor = LocalFileSystemMetrics.registerPool("load",
+            LocalFileSystemExecutors.newBoundedExecutor("local-file-load",
+                    LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_LOAD_THREADS", 2),
+                    LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_LOAD_QUEUE", 32)));
 
     @Override
     public void init(RefineServlet refineServlet) {
         this.servlet = refineServlet;
+        ResumableCopy.initialize();
+        WorkspaceWatcher.start(WorkspaceRoot.getDefault().getFolder());
     }
 
     @Override
@@ -46,21 +61,45 @@ public class LocalFileSystemImportingController implements ImportingController {
 
         String subCommand = parameters.getProperty("subCommand");
         logger.info("Subcommand : " + subCommand);
+        if (!SUB_COMMANDS.contains(subCommand)) {
+            HttpUtilities.respond(httpServletResponse, "error", "No such sub command");
+            return;
+        }
+
+        LocalFileSystemMetrics.Timer timer = LocalFileSystemMetrics.start(subCommand);
+        boolean background = false;
+        try {
+            background = dispatch(subCommand, httpServletRequest, httpServletResponse, parameters, timer);
+        } finally {
+            if (!background) {
+                timer.stop();
+            }
+        }
+    }
+
+    /**
+     * Each sub command marks {@code timer} successful when it answers "ok".
+     *
+     * @return true when the work goes on in the background, which then stops {@code timer}
+     */
+    private boolean dispatch(String subCommand, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse,
+                             Properties parameters, LocalFileSystemMetrics.Timer timer) throws ServletException, IOException {
         if ("list-documents".equals(subCommand)) {
-            doListDocuments(httpServletRequest, httpServletResponse, parameters);
+            doListDocuments(httpServletRequest, httpServletResponse, parameters, timer);
+        } else if ("file-metadata".equals(subCommand)) {
+            doFileMetadata(httpServletRequest, httpServletResponse, parameters, timer);
         } else if ("load-raw-data".equals(subCommand)) {
-            doLoadRawData(httpServletRequest, httpServletResponse, parameters);
+            return doLoadRawData(httpServletRequest, httpServletResponse, parameters, timer);
         } else if ("update-file-selection".equals(subCommand)) {
-            doUpdateFileSelection(httpServletRequest, httpServletResponse, parameters);
+            doUpdateFileSelection(httpServletRequest, httpServletResponse, parameters, timer);
         } else if ("initialize-parser-ui".equals(subCommand)) {
-            doInitializeParserUI(httpServletRequest, httpServletResponse, parameters);
+            doInitializeParserUI(httpServletRequest, httpServletResponse, parameters, timer);
         } else if ("update-format-and-options".equals(subCommand)) {
-            doUpdateFormatAndOptions(httpServletRequest, httpServletResponse, parameters);
+            doUpdateFormatAndOptions(httpServletRequest, httpServletResponse, parameters, timer);
         } else if ("create-project".equals(subCommand)) {
-            doCreateProject(httpServletRequest, httpServletResponse, parameters);
-        } else {
-            HttpUtilities.respond(httpServletResponse, "error", "No such sub command");
+            return doCreateProject(httpServletRequest, httpServletResponse, parameters, timer);
         }
+        return false;
     }
 
     @Override
@@ -69,24 +108,59 @@ public class LocalFileSystemImportingController implements ImportingController {
 
     }
 
-    private void doListDocuments(HttpServletRequest request, HttpServletResponse response, Properties parameters)
-            throws ServletException, IOException {
+    private void doListDocuments(HttpServletRequest request, HttpServletResponse response, Properties parameters,
+            LocalFileSystemMetrics.Timer timer) throws ServletException, IOException {
 
-        Writer w = response.getWriter();
+        int offset = getIntParameter(request, "offset", 0);
+        WorkspaceRoot root = getRoot(request.getParameter("root"), response);
+        if (root == null) {
+            return;
+        }
+
+        response.setHeader("Content-Type", "application/json");
+        Writer w = LocalFileSystemResponses.getWriter(request, response);
         JsonGenerator writer = ParsingUtilities.mapper.getFactory().createGenerator(w);
         try {
             writer.writeStartObject();
-            writer.writeStringField("localPath", LOCAL_FOLDER);
-            writer.writeArrayFieldStart("documents");
+            writer.writeStringField("root", root.getName());
+            writer.writeStringField("localPath", root.getFolder().getPath());
+            writer.writeArrayFieldStart("roots");
+            for (WorkspaceRoot workspaceRoot : WorkspaceRoot.getAll()) {
+                writer.writeString(workspaceRoot.getName());
+            }
+            writer.writeEndArray();
 
+            WorkspaceListing.Result result = null;
             try {
-                listFiles(LOCAL_FOLDER, writer);
+                WorkspaceScheduler.Permit permit = WorkspaceScheduler.acquire(root, WorkspaceScheduler.Kind.LIST,
+                        WorkspaceScheduler.getUser(request));
+                try {
+                    result = new WorkspaceListing(root.getFolder().toPath())
+                            .setPattern(request.getParameter("pattern"))
+                            .setExtensions(request.getParameter("extensions"))
+                            .setMaxDepth(getIntParameter(request, "depth",
+                                    "true".equals(request.getParameter("recursive")) ? DEFAULT_RECURSIVE_DEPTH : 1))
+                            .setSort(WorkspaceListing.Sort.fromString(request.getParameter("sort")),
+                                    "desc".equalsIgnoreCase(request.getParameter("order")))
+                            .setPage(offset, getIntParameter(request, "limit", DEFAULT_PAGE_SIZE))
+                            .list();
+                } finally {
+                    permit.close();
+                }
             } catch (Exception e) {
                 logger.error("doListDocuments exception:" + e.getMessage());
-            } finally {
-                writer.writeEndArray();
+            }
 
+            writer.writeArrayFieldStart("documents");
+            if (result != null) {
+                timer.success();
+                listFiles(result, writer, !"false".equals(request.getParameter("metadata")),
+                        "true".equals(request.getParameter("compact")), WorkspaceScheduler.getUser(request));
             }
+            writer.writeEndArray();
+            writer.writeNumberField("offset", offset);
+            writer.writeNumberField("total", result == null ? 0 : result.total);
+            writer.writeEndObject();
         } catch (IOException e) {
             throw new ServletException(e);
         } finally {
@@ -97,56 +171,189 @@ public class LocalFileSystemImportingController implements ImportingController {
         }
     }
 
-    private void listFiles(String folderPath, JsonGenerator writer)
+    /**
+     * @param metadata add the cached format, encoding and row count, or a pending placeholder to poll with file-metadata
+     */
+    static void listFiles(WorkspaceListing.Result result, JsonGenerator writer, boolean metadata)
             throws IOException {
+        listFiles(result, writer, metadata, false, null);
+    }
+
+    /**
+     * @param compact leave out the path of each document, it is the listing localPath followed by the name
+     * @param user     the user the metadata of the documents is read for
+     */
+    static void listFiles(WorkspaceListing.Result result, JsonGenerator writer, boolean metadata, boolean compact,
+                          String user) throws IOException {
+
+        for (WorkspaceListing.Entry entry : result.entries) {
+            writer.writeStartObject();
+            writer.writeStringField("name", entry.name);
+            if (!compact) {
+                writer.writeStringField("localPath", entry.path.toAbsolutePath().toString());
+            }
+            writer.writeNumberField("size", entry.size);
+            writer.writeNumberField("modified", entry.modified);
+            if (metadata) {
+                writer.writeObjectField("metadata", WorkspaceFileMetadata.get(entry.path.toFile(), user));
+            }
+            writer.writeEndObject();
+        }
+    }
+
+    /**
+     * The metadata of the {@code localFile} files, polled by the listing until none is pending.
+     */
+    private void doFileMetadata(HttpServletRequest request, HttpServletResponse response, Properties parameters,
+            LocalFileSystemMetrics.Timer timer) throws ServletException, IOException {
 
+        String[] localFiles = request.getParameterValues("localFile");
+        if (localFiles == null || localFiles.length == 0) {
+            HttpUtilities.respond(response, "error", "No workspace file selected");
+            return;
+        }
+        WorkspaceRoot root = getRoot(request.getParameter("root"), response);
+        if (root == null) {
+            return;
+        }
+        Properties fileParameters = new Properties();
+        fileParameters.setProperty("localFile", String.join("\n", localFiles));
+        List<File> files;
+        ArrayNode documents = ParsingUtilities.mapper.createArrayNode();
         try {
-            File f = new File(folderPath);
-
-            if (f.isDirectory()) {
-                File[] files = f.listFiles();
-
-                for (int i = 0; i < Objects.requireNonNull(files).length; i++) {
-                    File file = files[i];
-                    if (file.canRead() && file.isFile() && !file.getName().contains(".~lock.")) {
-                        writer.writeStartObject();
-                        writer.writeStringField("name", file.getName());
-                        writer.writeStringField("localPath", file.getAbsolutePath());
-                        writer.writeEndObject();
-                    }
+            String user = WorkspaceScheduler.getUser(request);
+            WorkspaceScheduler.Permit permit = WorkspaceScheduler.acquire(root, WorkspaceScheduler.Kind.LIST, user);
+            try {
+                files = LocalImportingUtilities.resolveSourceFiles(root.getFolder(), fileParameters);
+                for (File file : files) {
+                    ObjectNode document = ParsingUtilities.mapper.createObjectNode();
+                    JSONUtilities.safePut(document, "localPath", file.getAbsolutePath());
+                    JSONUtilities.safePut(document, "metadata", WorkspaceFileMetadata.get(file, user));
+                    JSONUtilities.append(documents, document);
                 }
+            } finally {
+                permit.close();
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (IOException | RejectedExecutionException e) {
+            HttpUtilities.respond(response, "error", e.getMessage());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServletException(e);
         }
 
+        ObjectNode result = ParsingUtilities.mapper.createObjectNode();
+        JSONUtilities.safePut(result, "code", "ok");
+        JSONUtilities.safePut(result, "documents", documents);
+        timer.success();
+        LocalFileSystemResponses.respondJSON(request, response, result);
     }
 
-    private void doLoadRawData(HttpServletRequest request, HttpServletResponse response, Properties parameters)
-            throws ServletException, IOException {
+    /**
+     * The workspace root named {@code name}, the default one when it is empty. An unknown name is answered with
+     * an error and returns null.
+     */
+    private static WorkspaceRoot getRoot(String name, HttpServletResponse response) throws IOException {
+        try {
+            return WorkspaceRoot.get(name);
+        } catch (IllegalArgumentException e) {
+            HttpUtilities.respond(response, "error", e.getMessage());
+            return null;
+        }
+    }
+
+    private static int getIntParameter(HttpServletRequest request, String name, int defaultValue) {
+        String value = request.getParameter(name);
+        if (value != null && !value.isEmpty()) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                // fall back to the default
+            }
+        }
+        return defaultValue;
+    }
+
+    private boolean doLoadRawData(HttpServletRequest request, HttpServletResponse response, Properties parameters,
+            LocalFileSystemMetrics.Timer timer) throws ServletException, IOException {
 
         long jobID = Long.parseLong(parameters.getProperty("jobID"));
-        ImportingJob job = ImportingManager.getJob(jobID);
+        final ImportingJob job = ImportingManager.getJob(jobID);
         if (job == null) {
             HttpUtilities.respond(response, "error", "No such import job");
-            return;
+            return false;
         }
 
         job.updating = true;
-        ObjectNode config = job.getOrCreateDefaultConfig();
+        final ObjectNode config = job.getOrCreateDefaultConfig();
         if (!("new".equals(JSONUtilities.getString(config, "state", null)))) {
             HttpUtilities.respond(response, "error", "Job already started; cannot load more data");
-            return;
+            return false;
         }
 
-        LocalImportingUtilities.loadDataAndPrepareJob(
-                request, response, parameters, job, config);
-        job.touch();
-        job.updating = false;
+        // the request is gone once we respond, keep what the background load needs
+        final Properties loadParameters = new Properties();
+        loadParameters.putAll(parameters);
+        Enumeration<String> names = request.getParameterNames();
+        while (names.hasMoreElements()) {
+            String name = names.nextElement();
+            // several files can be selected, they are passed one per line
+            loadParameters.setProperty(name, String.join("\n", request.getParameterValues(name)));
+        }
+
+        final WorkspaceRoot root = getRoot(loadParameters.getProperty("root"), response);
+        if (root == null) {
+            job.updating = false;
+            return false;
+        }
+        synchronized (config) {
+            // create-project reads the files of the same root
+            JSONUtilities.safePut(config, "workspaceRoot", root.getName());
+            JSONUtilities.safePut(config, "state", "loading-raw-data");
+        }
+        final String user = WorkspaceScheduler.getUser(request);
+        final long queuedTime = System.currentTimeMillis();
+        try {
+            // each file copy waits for its own READ slot on the root
+            loadExecutor.execute(() -> {
+                LocalFileSystemMetrics.record("load-queue", System.currentTimeMillis() - queuedTime, true);
+                try {
+                    LocalImportingUtilities.loadDataAndPrepareJob(root.getFolder(), loadParameters, user, job, config);
+                    synchronized (config) {
+                        if (!"error".equals(JSONUtilities.getString(config, "state", null))) {
+                            timer.success();
+                        }
+                    }
+                } catch (Exception e) {
+                    logger.error("load-raw-data failed for job " + job.id, e);
+                    synchronized (config) {
+                        JSONUtilities.safePut(config, "state", "error");
+                        JSONUtilities.safePut(config, "error", "Error uploading data");
+                        JSONUtilities.safePut(config, "errorDetails", e.getLocalizedMessage());
+                    }
+                } finally {
+                    timer.stop();
+                    job.touch();
+                    job.updating = false;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (config) {
+                JSONUtilities.safePut(config, "state", "error");
+                JSONUtilities.safePut(config, "error", "Too many imports in progress");
+                JSONUtilities.safePut(config, "errorDetails", "Try again once the running imports are done");
+            }
+            job.updating = false;
+            HttpUtilities.respond(response, "error", "Too many imports in progress");
+            return false;
+        }
+
+        HttpUtilities.respond(response, "ok", "loading");
+        return true;
     }
 
-    private void doUpdateFileSelection(HttpServletRequest request, HttpServletResponse response, Properties parameters)
-            throws ServletException, IOException {
+    private void doUpdateFileSelection(HttpServletRequest request, HttpServletResponse response, Properties parameters,
+            LocalFileSystemMetrics.Timer timer) throws ServletException, IOException {
 
         long jobID = Long.parseLong(parameters.getProperty("jobID"));
         ImportingJob job = ImportingManager.getJob(jobID);
@@ -165,8 +372,9 @@ public class LocalFileSystemImportingController implements ImportingController {
         ArrayNode fileSelectionArray = ParsingUtilities.evaluateJsonStringToArrayNode(
                 request.getParameter("fileSelection"));
 
-        ImportingUtilities.updateJobWithNewFileSelection(job, fileSelectionArray);
+        LocalImportingUtilities.updateJobWithNewFileSelection(job, fileSelectionArray);
 
+        timer.success();
         replyWithJobData(request, response, job);
         job.touch();
         job.updating = false;
@@ -174,6 +382,8 @@ public class LocalFileSystemImportingController implements ImportingController {
 
     /**
      * return the job to the front end.
+     * With {@code compact=true} only the fields the UI reads are returned, and the config fields whose revision
+     * matches the {@code since} parameter are left out.
      *
      * @param request
      * @param response
@@ -184,14 +394,20 @@ public class LocalFileSystemImportingController implements ImportingController {
     private void replyWithJobData(HttpServletRequest request, HttpServletResponse response, ImportingJob job)
             throws ServletException, IOException {
 
-        Writer w = response.getWriter();
-        ParsingUtilities.defaultWriter.writeValue(w, new JobResponse("ok", job));
-        w.flush();
-        w.close();
+        if ("true".equals(request.getParameter("compact"))) {
+            String since = request.getParameter("since");
+            ObjectNode result = ParsingUtilities.mapper.createObjectNode();
+            JSONUtilities.safePut(result, "code", "ok");
+            JSONUtilities.safePut(result, "job", LocalFileSystemResponses.compactJob(job,
+                    since == null || since.isEmpty() ? null : ParsingUtilities.evaluateJsonStringToObjectNode(since)));
+            LocalFileSystemResponses.respondJSON(request, response, result);
+            return;
+        }
+        LocalFileSystemResponses.respondJSON(request, response, new JobResponse("ok", job));
     }
 
-    private void doUpdateFormatAndOptions(HttpServletRequest request, HttpServletResponse response, Properties parameters)
-            throws ServletException, IOException {
+    private void doUpdateFormatAndOptions(HttpServletRequest request, HttpServletResponse response, Properties parameters,
+            LocalFileSystemMetrics.Timer timer) throws ServletException, IOException {
 
         long jobID = Long.parseLong(parameters.getProperty("jobID"));
         ImportingJob job = ImportingManager.getJob(jobID);
@@ -213,7 +429,15 @@ public class LocalFileSystemImportingController implements ImportingController {
 
         List<Exception> exceptions = new LinkedList<Exception>();
 
-        ImportingUtilities.previewParse(job, format, optionObj, exceptions);
+        LocalFileSystemMetrics.Timer parseTimer = LocalFileSystemMetrics.start("preview-parse");
+        try {
+            LocalImportingUtilities.previewParse(job, format, optionObj, exceptions);
+            if (exceptions.isEmpty()) {
+                parseTimer.success();
+            }
+        } finally {
+            parseTimer.stop();
+        }
 
         Writer w = response.getWriter();
         JsonGenerator writer = ParsingUtilities.mapper.getFactory().createGenerator(w);
@@ -223,6 +447,7 @@ public class LocalFileSystemImportingController implements ImportingController {
                 job.project.update(); // update all internal models, indexes, caches, etc.
 
                 writer.writeStringField("status", "ok");
+                timer.success();
             } else {
                 writer.writeStringField("status", "error");
                 writer.writeArrayFieldStart("errors");
@@ -254,8 +479,8 @@ public class LocalFileSystemImportingController implements ImportingController {
         }
     }
 
-    private void doInitializeParserUI(HttpServletRequest request, HttpServletResponse response, Properties parameters)
-            throws ServletException, IOException {
+    private void doInitializeParserUI(HttpServletRequest request, HttpServletResponse response, Properties parameters,
+            LocalFileSystemMetrics.Timer timer) throws ServletException, IOException {
 
         long jobID = Long.parseLong(parameters.getProperty("jobID"));
         ImportingJob job = ImportingManager.getJob(jobID);
@@ -267,11 +492,11 @@ public class LocalFileSystemImportingController implements ImportingController {
         String format = request.getParameter("format");
         Format formatRecord = ImportingManager.formatToRecord.get(format);
         if (formatRecord != null && formatRecord.parser != null) {
-            ObjectNode options = formatRecord.parser.createParserUIInitializationData(
-                    job, job.getSelectedFileRecords(), format);
+            ObjectNode options = LocalImportingUtilities.createParserUIInitializationData(job, formatRecord, format);
             ObjectNode result = ParsingUtilities.mapper.createObjectNode();
             JSONUtilities.safePut(result, "status", "ok");
             JSONUtilities.safePut(result, "options", options);
+            timer.success();
 
             Command.respondJSON(response, result);
         } else {
@@ -279,14 +504,14 @@ public class LocalFileSystemImportingController implements ImportingController {
         }
     }
 
-    private void doCreateProject(HttpServletRequest request, HttpServletResponse response, Properties parameters)
-            throws ServletException, IOException {
+    private boolean doCreateProject(HttpServletRequest request, HttpServletResponse response, Properties parameters,
+            LocalFileSystemMetrics.Timer timer) throws ServletException, IOException {
 
         long jobID = Long.parseLong(parameters.getProperty("jobID"));
         ImportingJob job = ImportingManager.getJob(jobID);
         if (job == null) {
             HttpUtilities.respond(response, "error", "No such import job");
-            return;
+            return false;
         }
 
         job.updating = true;
@@ -294,18 +519,36 @@ public class LocalFileSystemImportingController implements ImportingController {
         ObjectNode config = job.getOrCreateDefaultConfig();
         if (!("ready".equals(JSONUtilities.getString(config, "state", null)))) {
             HttpUtilities.respond(response, "error", "Job not ready");
-            return;
+            return false;
         }
 
         String format = request.getParameter("format");
         ObjectNode optionObj = ParsingUtilities.evaluateJsonStringToObjectNode(
                 request.getParameter("options"));
 
-        List<Exception> exceptions = new LinkedList<Exception>();
+        final List<Exception> exceptions = new LinkedList<Exception>();
 
-        ImportingUtilities.createProject(job, format, optionObj, exceptions, false);
+        // a thread of its own like ImportingUtilities.createProject, it parses the raw data dir of the job and
+        // doesn't wait behind the loads
+        job.setState("creating-project");
+        new Thread(() -> {
+            try {
+                LocalImportingUtilities.createProject(job, format, optionObj, exceptions);
+                if (exceptions.isEmpty() && !job.canceled) {
+                    timer.success();
+                }
+            } catch (Exception e) {
+                logger.error("create-project failed for job " + job.id, e);
+                exceptions.add(e);
+                job.setError(exceptions);
+                job.updating = false;
+            } finally {
+                timer.stop();
+            }
+        }, "local-file-create-project").start();
 
         HttpUtilities.respond(response, "ok", "done");
+        return true;
     }
 
     protected static class JobResponse {
@@ -0,0 +1,200 @@
+package com.refinepro;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.refine.util.JSONUtilities;
+import com.google.refine.util.ParsingUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Timings, errors and bytes of the import sub commands and the workspace export, plus the load of the background pools.
+ * Read through the {@code metrics} command or JMX under {@code com.refinepro.localfilesystem}.
+ */
+public class LocalFileSystemMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger("LocalFileSystemMetrics");
+
+    private static final String JMX_DOMAIN = "com.refinepro.localfilesystem";
+
+    private static final long startTime = System.currentTimeMillis();
+    private static final Map<String, StageMetrics> stages = new ConcurrentSkipListMap<>();
+    private static final Map<String, PoolMetrics> pools = new ConcurrentHashMap<>();
+
+    /**
+     * JMX view of a background pool, registered as {@code com.refinepro.localfilesystem:type=Pool,name=<pool>}.
+     */
+    public interface PoolMetricsMXBean {
+        int getActive();
+
+        int getQueued();
+
+        int getMaxThreads();
+
+        long getCompleted();
+    }
+
+    static class PoolMetrics implements PoolMetricsMXBean {
+        private final ThreadPoolExecutor executor;
+
+        PoolMetrics(ThreadPoolExecutor executor) {
+            this.executor = executor;
+        }
+
+        @Override
+        public int getActive() {
+            return executor.getActiveCount();
+        }
+
+        @Override
+        public int getQueued() {
+            return executor.getQueue().size();
+        }
+
+        @Override
+        public int getMaxThreads() {
+            return executor.getMaximumPoolSize();
+        }
+
+        @Override
+        public long getCompleted() {
+            return executor.getCompletedTaskCount();
+        }
+    }
+
+    /**
+     * One measurement of a stage. Call {@link #success()} once the work is done, {@link #stop()} in a finally
+     * block records it and counts it as an error when success was never reached. It can be handed to the thread
+     * that finishes the work, only the first stop is recorded.
+     */
+    public static class Timer {
+        private final StageMetrics stage;
+        private final long startNanos = System.nanoTime();
+        private long bytesRead;
+        private long bytesWritten;
+        private boolean success;
+        private boolean stopped;
+
+        private Timer(StageMetrics stage) {
+            this.stage = stage;
+            stage.started();
+        }
+
+        public Timer read(long bytes) {
+            bytesRead += bytes;
+            return this;
+        }
+
+        public Timer written(long bytes) {
+            bytesWritten += bytes;
+            return this;
+        }
+
+        public synchronized void success() {
+            success = true;
+        }
+
+        public synchronized void stop() {
+            if (!stopped) {
+                stopped = true;
+                stage.stopped(System.nanoTime() - startNanos, success, bytesRead, bytesWritten);
+            }
+        }
+
+        /**
+         * Forget this measurement, for work that turned out to be a no-op.
+         */
+        public synchronized void discard() {
+            if (!stopped) {
+                stopped = true;
+                stage.discarded();
+            }
+        }
+    }
+
+    private LocalFileSystemMetrics() {
+    }
+
+    public static Timer start(String stage) {
+        return new Timer(getStage(stage));
+    }
+
+    /**
+     * Record a duration measured elsewhere, such as the time a job waited in a queue.
+     */
+    public static void record(String stage, long millis, boolean success) {
+        getStage(stage).record(millis * 1000000L, success, 0L, 0L);
+    }
+
+    public static StageMetrics getStage(String name) {
+        return stages.computeIfAbsent(name, key -> {
+            StageMetrics stage = new StageMetrics(key);
+            register("Stage", key, stage);
+            return stage;
+        });
+    }
+
+    /**
+     * Report the active and queued tasks of {@code executor} under {@code name}.
+     */
+    public static <E extends ThreadPoolExecutor> E registerPool(String name, E executor) {
+        PoolMetrics pool = new PoolMetrics(executor);
+        pools.put(name, pool);
+        register("Pool", name, pool);
+        return executor;
+    }
+
+    public static void reset() {
+        for (StageMetrics stage : stages.values()) {
+            stage.reset();
+        }
+    }
+
+    public static ObjectNode toJson() {
+        ObjectNode node = ParsingUtilities.mapper.createObjectNode();
+        JSONUtilities.safePut(node, "uptimeMillis", System.currentTimeMillis() - startTime);
+
+        ObjectNode stagesNode = ParsingUtilities.mapper.createObjectNode();
+        for (Map.Entry<String, StageMetrics> entry : stages.entrySet()) {
+            JSONUtilities.safePut(stagesNode, entry.getKey(), entry.getValue().toJson());
+        }
+        JSONUtilities.safePut(node, "stages", stagesNode);
+
+        ObjectNode poolsNode = ParsingUtilities.mapper.createObjectNode();
+        for (Map.Entry<String, PoolMetrics> entry : pools.entrySet()) {
+            PoolMetrics pool = entry.getValue();
+            ObjectNode poolNode = ParsingUtilities.mapper.createObjectNode();
+            JSONUtilities.safePut(poolNode, "active", (long) pool.getActive());
+            JSONUtilities.safePut(poolNode, "queued", (long) pool.getQueued());
+            JSONUtilities.safePut(poolNode, "maxThreads", (long) pool.getMaxThreads());
+            JSONUtilities.safePut(poolNode, "completed", pool.getCompleted());
+            JSONUtilities.safePut(poolsNode, entry.getKey(), poolNode);
+        }
+        JSONUtilities.safePut(node, "pools", poolsNode);
+        return node;
+    }
+
+    private static void register(String type, String name, Object bean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + name);
+            try {
+                server.registerMBean(bean, objectName);
+            } catch (InstanceAlreadyExistsException e) {
+                // left over by a previous load of the extension
+                server.unregisterMBean(objectName);
+                server.registerMBean(bean, objectName);
+            }
+        } catch (Exception e) {
+            logger.warn("Cannot register JMX bean for " + type + " " + name + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.refinepro;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.refine.importing.ImportingJob;
+import com.google.refine.util.JSONUtilities;
+import com.google.refine.util.ParsingUtilities;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Smaller answers for the job and listing sub commands: gzip compression of large responses when the client
+ * accepts it, and a compact view of the import job.
+ */
+public class LocalFileSystemResponses {
+
+    // responses shorter than this are sent as is, negative never compresses
+    private static final int GZIP_THRESHOLD = LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_GZIP_THRESHOLD", 8 * 1024);
+
+    // what the file selection and parsing panels read from a file record
+    private static final List<String> COMPACT_FILE_FIELDS = Arrays.asList(
+            "fileName", "archiveFileName", "origin", "size", "format", "encoding");
+
+    private LocalFileSystemResponses() {
+    }
+
+    /**
+     * A UTF-8 writer on the response, gzip compressed once it gets larger than the threshold if the request
+     * accepts it. Nothing is sent before the threshold is reached or the writer is closed, so the encoding header
+     * can still be set.
+     */
+    public static Writer getWriter(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setCharacterEncoding("UTF-8");
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (GZIP_THRESHOLD < 0) {
+            return new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+        }
+        response.setHeader("Vary", "Accept-Encoding");
+        if (acceptEncoding == null || !acceptEncoding.toLowerCase().contains("gzip")) {
+            return new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+        }
+        return new OutputStreamWriter(new GzipThresholdOutputStream(response, GZIP_THRESHOLD), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Same as {@code Command.respondJSON}, through {@link #getWriter}.
+     */
+    public static void respondJSON(HttpServletRequest request, HttpServletResponse response, Object o)
+            throws IOException {
+        response.setHeader("Content-Type", "application/json");
+        response.setHeader("Cache-Control", "no-cache");
+
+        Writer w = getWriter(request, response);
+        ParsingUtilities.defaultWriter.writeValue(w, o);
+        w.flush();
+        w.close();
+    }
+
+    /**
+     * The job as the UI needs it: the file records keep only the fields shown, and the {@code revisions} of the
+     * config fields let the next request pass them back as {@code since}, the fields that did not change since
+     * are then left out and listed in {@code unchanged}.
+     *
+     * @param since revision of each config field the client already has, may be null
+     */
+    public static ObjectNode compactJob(ImportingJob job, ObjectNode since) {
+        ObjectNode config;
+        synchronized (job.getOrCreateDefaultConfig()) {
+            config = job.getOrCreateDefaultConfig().deepCopy();
+        }
+
+        ObjectNode retrievalRecord = JSONUtilities.getObject(config, "retrievalRecord");
+        if (retrievalRecord != null) {
+            ArrayNode files = JSONUtilities.getArray(retrievalRecord, "files");
+            if (files != null) {
+                ArrayNode compactFiles = ParsingUtilities.mapper.createArrayNode();
+                for (int i = 0; i < files.size(); i++) {
+                    ObjectNode compactFile = ParsingUtilities.mapper.createObjectNode();
+                    JsonNode file = files.get(i);
+                    for (String field : COMPACT_FILE_FIELDS) {
+                        if (file.has(field)) {
+                            compactFile.set(field, file.get(field));
+                        }
+                    }
+                    compactFiles.add(compactFile);
+                }
+                JSONUtilities.safePut(retrievalRecord, "files", compactFiles);
+            }
+        }
+
+        ObjectNode revisions = ParsingUtilities.mapper.createObjectNode();
+        ArrayNode unchanged = ParsingUtilities.mapper.createArrayNode();
+        Iterator<Map.Entry<String, JsonNode>> fields = config.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            if (!field.getValue().isContainerNode()) {
+                continue;
+            }
+            String revision = revision(field.getValue());
+            JSONUtilities.safePut(revisions, field.getKey(), revision);
+            if (since != null && revision.equals(since.path(field.getKey()).asText(null))) {
+                unchanged.add(field.getKey());
+                fields.remove();
+            }
+        }
+
+        ObjectNode compactJob = ParsingUtilities.mapper.createObjectNode();
+        JSONUtilities.safePut(compactJob, "config", config);
+        JSONUtilities.safePut(compactJob, "revisions", revisions);
+        if (unchanged.size() > 0) {
+            JSONUtilities.safePut(compactJob, "unchanged", unchanged);
+        }
+        return compactJob;
+    }
+
+    private static String revision(JsonNode node) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(node.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(16);
+            for (int i = 0; i < 8; i++) {
+                sb.append(String.format("%02x", digest[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Buffers the response until it is larger than the threshold, then switches to gzip.
+     */
+    private static class GzipThresholdOutputStream extends OutputStream {
+        private final HttpServletResponse response;
+        private final int threshold;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private OutputStream out;
+
+        GzipThresholdOutputStream(HttpServletResponse response, int threshold) {
+            this.response = response;
+            this.threshold = threshold;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (out == null) {
+                if (buffer.size() + len <= threshold) {
+                    buffer.write(b, off, len);
+                    return;
+                }
+                response.setHeader("Content-Encoding", "gzip");
+                out = new GZIPOutputStream(response.getOutputStream(), 8192);
+                buffer.writeTo(out);
+                buffer = null;
+            }
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // a flush while buffering would commit the response before the encoding is known
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out == null) {
+                OutputStream plain = response.getOutputStream();
+                buffer.writeTo(plain);
+                buffer = null;
+                out = plain;
+            }
+            out.close();
+        }
+    }
+}
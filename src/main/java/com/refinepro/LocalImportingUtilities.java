@@ -2,40 +2,183 @@ package com.refinepro;
 
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.refine.ProjectManager;
+import com.google.refine.ProjectMetadata;
+import com.google.refine.importers.ImporterUtilities;
+import com.google.refine.importers.ImporterUtilities.MultiFileReadingProgress;
+import com.google.refine.importers.ImportingParserBase;
 import com.google.refine.importing.*;
+import com.google.refine.model.Project;
+import com.google.refine.util.TrackingInputStream;
 import com.google.refine.util.JSONUtilities;
 import com.google.refine.util.ParsingUtilities;
-import org.apache.commons.fileupload.ProgressListener;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
-import org.apache.commons.fileupload.servlet.ServletFileUpload;
-import org.apache.commons.io.FileUtils;
 
 import javax.activation.MimetypesFileTypeMap;
-import javax.servlet.ServletException;
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
 import java.io.*;
+import java.lang.reflect.Field;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public class LocalImportingUtilities extends ImportingUtilities {
 
+    private static final String INGEST_STRATEGY = LocalFileSystemConfig.getString("EXT_LOCAL_FILE_SYSTEM_INGEST", null);
 
-    public static void loadDataAndPrepareJob(HttpServletRequest request, HttpServletResponse response, Properties parameters, final ImportingJob job, ObjectNode config) throws IOException, ServletException {
-        ObjectNode retrievalRecord = ParsingUtilities.mapper.createObjectNode();
-        JSONUtilities.safePut(config, "retrievalRecord", retrievalRecord);
-        JSONUtilities.safePut(config, "state", "loading-raw-data");
+    private static final long TRANSFER_CHUNK_SIZE = 8L * 1024 * 1024;
+
+    // the line based and text guessers look at the first 64k characters
+    private static final long FORMAT_SAMPLE_SIZE = LocalFileSystemConfig.getLong("EXT_LOCAL_FILE_SYSTEM_GUESS_SAMPLE", 256L * 1024);
+
+    private static final int IMPORT_CONCURRENCY = LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_IMPORT_CONCURRENCY", 4);
+
+    private static final int MAX_PATTERN_DEPTH = 32;
+
+    private static final boolean PARALLEL_ARCHIVE_EXTRACTION = !"serial".equalsIgnoreCase(
+            LocalFileSystemConfig.getString("EXT_LOCAL_FILE_SYSTEM_ARCHIVE_MODE", "parallel"));
+
+    private static final int ARCHIVE_THREADS = LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_ARCHIVE_THREADS",
+            Runtime.getRuntime().availableProcessors());
+
+    private static final int ARCHIVE_IN_FLIGHT_KB = (int) Math.min(Integer.MAX_VALUE,
+            Math.max(1L, LocalFileSystemConfig.getLong("EXT_LOCAL_FILE_SYSTEM_ARCHIVE_IN_FLIGHT_MB", 256L)) * 1024);
+
+    private static final MimetypesFileTypeMap fileTypeMap = new MimetypesFileTypeMap();
+
+    private static final FileStateCache<String> formatGuessCache = new FileStateCache<>(1024);
+
+    private static final int CHARSET_SAMPLE_SIZE = Math.max(64,
+            LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_CHARSET_SAMPLE", 64 * 1024));
+
+    private static final FileStateCache<String> charsetCache = new FileStateCache<>(4096);
+
+    private static final long PREVIEW_SAMPLE_BYTES = Math.max(0L,
+            LocalFileSystemConfig.getLong("EXT_LOCAL_FILE_SYSTEM_PREVIEW_SAMPLE_MB", 4L)) * 1024 * 1024;
+
+    // inside the raw data dir, so the sample locations stay relative to it
+    private static final String PREVIEW_SAMPLE_DIR = ".preview-sample";
+
+    // gzip and bzip2 files are kept compressed and read through a decompressor when parsed
+    private static final boolean STREAM_DECOMPRESSION = "stream".equalsIgnoreCase(
+            LocalFileSystemConfig.getString("EXT_LOCAL_FILE_SYSTEM_DECOMPRESS", "disk"));
+
+    // the parser UI of a compressed file always needs a plain head, even when plain files are not sampled
+    private static final long COMPRESSED_PREVIEW_SAMPLE_BYTES = PREVIEW_SAMPLE_BYTES > 0
+            ? PREVIEW_SAMPLE_BYTES : 4L * 1024 * 1024;
+
+    /**
+     * How a workspace file is brought into the job raw data directory.
+     */
+    public enum IngestStrategy {
+        /** hard link when possible, channel copy otherwise */
+        AUTO("auto"),
+        /** hard link, the source and the raw data dir must share a file system */
+        LINK("link"),
+        /** FileChannel.transferTo copy */
+        TRANSFER("transfer"),
+        /** symbolic link to the original file, nothing is copied */
+        REFERENCE("reference"),
+        /** prepared files linked from the raw data cache, only ever reported, never requested */
+        CACHE("cache");
+
+        private final String name;
+
+        IngestStrategy(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public static IngestStrategy fromString(String value) {
+            if (value != null) {
+                for (IngestStrategy strategy : values()) {
+                    if (strategy != CACHE && strategy.name.equalsIgnoreCase(value.trim())) {
+                        return strategy;
+                    }
+                }
+            }
+            return AUTO;
+        }
+    }
+
+    /**
+     * Progress that is also told how many bytes were copied out of the expected total.
+     */
+    public interface ByteProgress extends Progress {
+        void setBytes(long retrievedSize, long expectedSize);
+    }
+
+    /**
+     * Copy, uncompress and guess the format of the selected workspace files.
+     * Doesn't touch the servlet request so it can run on a background thread, the request parameters
+     * are expected in {@code parameters}. The job config is only changed under its lock, the one OpenRefine and
+     * the status answers hold while reading it.
+     *
+     * @param user the user each file copy waits for a READ slot of its workspace root as
+     */
+    public static void loadDataAndPrepareJob(File workspaceFolder, Properties parameters, String user,
+                                             final ImportingJob job, ObjectNode config) {
         final ObjectNode progress = ParsingUtilities.mapper.createObjectNode();
-        JSONUtilities.safePut(config, "progress", progress);
+        // put every field up front, later updates then never change the structure read by the status command
+        JSONUtilities.safePut(progress, "message", "");
+        JSONUtilities.safePut(progress, "percent", -1L);
+        JSONUtilities.safePut(progress, "bytesCopied", 0L);
+        JSONUtilities.safePut(progress, "totalBytes", 0L);
+        synchronized (config) {
+            JSONUtilities.safePut(config, "state", "loading-raw-data");
+            JSONUtilities.safePut(config, "progress", progress);
+        }
 
+        LocalFileSystemMetrics.Timer timer = LocalFileSystemMetrics.start("load");
         try {
-            retrieveContentFromPostRequest(request, parameters, job.getRawDataDir(), retrievalRecord, new ImportingUtilities.Progress() {
+            loadDataAndPrepareJob(workspaceFolder, parameters, user, job, config, progress);
+            synchronized (config) {
+                timer.read(progress.path("totalBytes").asLong(0L));
+                if (!"error".equals(JSONUtilities.getString(config, "state", null))) {
+                    timer.success();
+                }
+            }
+        } finally {
+            timer.stop();
+        }
+        synchronized (config) {
+            config.remove("progress");
+        }
+    }
+
+    private static void loadDataAndPrepareJob(File workspaceFolder, Properties parameters, String user,
+                                              final ImportingJob job, final ObjectNode config, final ObjectNode progress) {
+        // filled while the files are loaded, only then attached to the config
+        ObjectNode retrievalRecord = ParsingUtilities.mapper.createObjectNode();
+        try {
+            retrieveContentFromPostRequest(workspaceFolder, parameters, user, job.getRawDataDir(), retrievalRecord, new ByteProgress() {
                 public void setProgress(String message, int percent) {
-                    if (message != null) {
-                        JSONUtilities.safePut(progress, "message", message);
+                    synchronized (config) {
+                        if (message != null) {
+                            JSONUtilities.safePut(progress, "message", message);
+                        }
+                        // the files are loaded in parallel, the message of one of them doesn't reset the share
+                        // of the bytes of every file already copied
+                        if (percent >= 0 || progress.path("totalBytes").asLong(0L) <= 0L) {
+                            JSONUtilities.safePut(progress, "percent", (long) percent);
+                        }
                     }
+                }
 
-                    JSONUtilities.safePut(progress, "percent", (long) percent);
+                public void setBytes(long retrievedSize, long expectedSize) {
+                    synchronized (config) {
+                        JSONUtilities.safePut(progress, "bytesCopied", retrievedSize);
+                        JSONUtilities.safePut(progress, "totalBytes", expectedSize);
+                    }
                 }
 
                 public boolean isCanceled() {
@@ -43,26 +186,34 @@ public class LocalImportingUtilities extends ImportingUtilities {
                 }
             });
         } catch (Exception var10) {
-            JSONUtilities.safePut(config, "state", "error");
-            JSONUtilities.safePut(config, "error", "Error uploading data");
-            JSONUtilities.safePut(config, "errorDetails", var10.getLocalizedMessage());
+            synchronized (config) {
+                JSONUtilities.safePut(config, "retrievalRecord", retrievalRecord);
+                JSONUtilities.safePut(config, "state", "error");
+                JSONUtilities.safePut(config, "error", "Error uploading data");
+                JSONUtilities.safePut(config, "errorDetails", var10.getLocalizedMessage());
+            }
             return;
         }
+        synchronized (config) {
+            JSONUtilities.safePut(config, "retrievalRecord", retrievalRecord);
+        }
 
         ArrayNode fileSelectionIndexes = ParsingUtilities.mapper.createArrayNode();
-        JSONUtilities.safePut(config, "fileSelection", fileSelectionIndexes);
         String bestFormat = autoSelectFiles(job, retrievalRecord, fileSelectionIndexes);
-        bestFormat = guessBetterFormat(job, bestFormat);
         ArrayNode rankedFormats = ParsingUtilities.mapper.createArrayNode();
-        rankFormats(job, bestFormat, rankedFormats);
-        JSONUtilities.safePut(config, "rankedFormats", rankedFormats);
-        JSONUtilities.safePut(config, "state", "ready");
-        JSONUtilities.safePut(config, "hasData", true);
-        config.remove("progress");
+        synchronized (config) {
+            JSONUtilities.safePut(config, "fileSelection", fileSelectionIndexes);
+        }
+        guessAndRankFormats(job, bestFormat, rankedFormats);
+        synchronized (config) {
+            JSONUtilities.safePut(config, "rankedFormats", rankedFormats);
+            JSONUtilities.safePut(config, "state", "ready");
+            JSONUtilities.safePut(config, "hasData", true);
+        }
     }
 
-
-    public static void retrieveContentFromPostRequest(HttpServletRequest request, Properties parameters, File rawDataDir, ObjectNode retrievalRecord, final Progress progress) throws Exception {
+    public static void retrieveContentFromPostRequest(File workspaceFolder, Properties parameters, final String user,
+                                                      final File rawDataDir, ObjectNode retrievalRecord, final Progress progress) throws Exception {
         ArrayNode fileRecords = ParsingUtilities.mapper.createArrayNode();
         JSONUtilities.safePut(retrievalRecord, "files", fileRecords);
         int clipboardCount = 0;
@@ -72,64 +223,66 @@ public class LocalImportingUtilities extends ImportingUtilities {
         final SavingUpdate update = new SavingUpdate() {
             public void savedMore() {
                 progress.setProgress((String) null, calculateProgressPercent(this.totalExpectedSize, this.totalRetrievedSize));
+                if (progress instanceof ByteProgress) {
+                    ((ByteProgress) progress).setBytes(this.totalRetrievedSize, this.totalExpectedSize);
+                }
             }
 
             public boolean isCanceled() {
                 return progress.isCanceled();
             }
         };
-        DiskFileItemFactory fileItemFactory = new DiskFileItemFactory();
-        ServletFileUpload upload = new ServletFileUpload(fileItemFactory);
-        upload.setProgressListener(new ProgressListener() {
-            boolean setContentLength = false;
-            long lastBytesRead = 0L;
+        final IngestStrategy strategy = getIngestStrategy(parameters);
+        final String declaredEncoding = parameters.getProperty("declaredEncoding");
+        progress.setProgress("Uploading data ...", -1);
 
-            public void update(long bytesRead, long contentLength, int itemCount) {
-                SavingUpdate var10000;
-                if (!this.setContentLength && contentLength >= 0L) {
-                    var10000 = update;
-                    var10000.totalExpectedSize += contentLength;
-                    this.setContentLength = true;
-                }
+        final List<File> sourceFiles = resolveSourceFiles(workspaceFolder, parameters);
+        for (File sourceFile : sourceFiles) {
+            update.totalExpectedSize += sourceFile.length();
+        }
 
-                if (this.setContentLength) {
-                    var10000 = update;
-                    var10000.totalRetrievedSize += bytesRead - this.lastBytesRead;
-                    this.lastBytesRead = bytesRead;
-                    update.savedMore();
+        // each file gets its own folder when there are several, so parallel copies and archive explosions never collide
+        List<Callable<RetrievedFile>> tasks = new ArrayList<>(sourceFiles.size());
+        for (int i = 0; i < sourceFiles.size(); i++) {
+            final File sourceFile = sourceFiles.get(i);
+            final File targetDir = sourceFiles.size() == 1 ? rawDataDir : new File(rawDataDir, String.valueOf(i + 1));
+            tasks.add(() -> {
+                // one READ slot per file, so a large selection takes its turn with the other imports of the root
+                WorkspaceScheduler.Permit permit = WorkspaceScheduler.acquire(sourceFile, WorkspaceScheduler.Kind.READ, user);
+                try {
+                    return retrieveWorkspaceFile(sourceFile, targetDir, strategy, declaredEncoding, update, progress);
+                } finally {
+                    if (permit != null) {
+                        permit.close();
+                    }
                 }
+            });
+        }
+        // the parameter can lower the setting, not raise it
+        int maxConcurrency = Math.max(1, IMPORT_CONCURRENCY);
+        int concurrency = Math.max(1, Math.min(maxConcurrency,
+                getIntParameter(parameters, "concurrency", maxConcurrency)));
+        List<RetrievedFile> retrievedFiles = runAll(tasks, concurrency, "local-file-ingest");
 
+        Set<String> usedStrategies = new LinkedHashSet<>();
+        for (RetrievedFile retrievedFile : retrievedFiles) {
+            String prefix = getRelativePath(retrievedFile.dir, rawDataDir);
+            for (int i = 0; i < retrievedFile.fileRecords.size(); i++) {
+                ObjectNode fileRecord = JSONUtilities.getObjectElement(retrievedFile.fileRecords, i);
+                if (!prefix.isEmpty()) {
+                    JSONUtilities.safePut(fileRecord, "location",
+                            prefix + File.separator + JSONUtilities.getString(fileRecord, "location", ""));
+                }
+                JSONUtilities.append(fileRecords, fileRecord);
             }
-        });
-        String localFile = request.getParameter("localFile");
-        progress.setProgress("Uploading data ...", -1);
-
-        File selectedFile = new File(localFile);
-        InputStream stream = new FileInputStream(localFile);
-        String fileName = selectedFile.getName();
-        if (fileName.length() > 0) {
-
-            File file = allocateFile(rawDataDir, fileName);
-            FileUtils.copyFile(selectedFile, file);
-
-            long fileSize = file.getTotalSpace();
-            ObjectNode fileRecord = ParsingUtilities.mapper.createObjectNode();
-            JSONUtilities.safePut(fileRecord, "origin", "upload");
-            JSONUtilities.safePut(fileRecord, "declaredEncoding", request.getCharacterEncoding());
-            MimetypesFileTypeMap fileTypeMap = new MimetypesFileTypeMap();
-            JSONUtilities.safePut(fileRecord, "declaredMimeType", fileTypeMap.getContentType(file.getName()));
-            JSONUtilities.safePut(fileRecord, "fileName", fileName);
-            JSONUtilities.safePut(fileRecord, "location", getRelativePath(file, rawDataDir));
-            progress.setProgress("Saving file " + fileName + " locally (" + formatBytes(fileSize) + " bytes)", calculateProgressPercent(update.totalExpectedSize, update.totalRetrievedSize));
-            JSONUtilities.safePut(fileRecord, "size", fileSize);
-            if (postProcessRetrievedFile(rawDataDir, file, fileRecord, fileRecords, progress)) {
+            usedStrategies.add(retrievedFile.strategy.getName());
+            if (retrievedFile.archive) {
                 ++archiveCount;
             }
-
             ++uploadCount;
         }
-
-        stream.close();
+        JSONUtilities.safePut(retrievalRecord, "ingestStrategy",
+                usedStrategies.size() == 1 ? usedStrategies.iterator().next() : "mixed");
 
 
         JSONUtilities.safePut(retrievalRecord, "uploadCount", (long) uploadCount);
@@ -138,12 +291,407 @@ public class LocalImportingUtilities extends ImportingUtilities {
         JSONUtilities.safePut(retrievalRecord, "archiveCount", (long) archiveCount);
     }
 
+    private static class RetrievedFile {
+        final File dir;
+        final ArrayNode fileRecords;
+        final IngestStrategy strategy;
+        final boolean archive;
+
+        RetrievedFile(File dir, ArrayNode fileRecords, IngestStrategy strategy, boolean archive) {
+            this.dir = dir;
+            this.fileRecords = fileRecords;
+            this.strategy = strategy;
+            this.archive = archive;
+        }
+    }
+
+    /**
+     * Ingest and post process one workspace file into {@code targetDir}, locations in the records are relative to it.
+     */
+    private static RetrievedFile retrieveWorkspaceFile(File sourceFile, File targetDir, IngestStrategy strategy,
+                                                       String declaredEncoding, SavingUpdate update, Progress progress) throws IOException {
+        String fileName = sourceFile.getName();
+        long fileSize = sourceFile.length();
+        progress.setProgress("Saving file " + fileName + " locally (" + formatBytes(fileSize) + " bytes)", -1);
+
+        // a reference ingest must keep pointing at the original file
+        String cacheKey = strategy != IngestStrategy.REFERENCE && RawDataCache.isEnabled() ? RawDataCache.key(sourceFile) : null;
+        if (cacheKey != null) {
+            LocalFileSystemMetrics.Timer timer = LocalFileSystemMetrics.start("ingest-cache");
+            RawDataCache.Hit hit = RawDataCache.get(cacheKey, targetDir);
+            if (hit == null) {
+                timer.discard();
+            } else {
+                timer.success();
+                timer.stop();
+                // a content hashed entry may come from another file with the same bytes, only what was derived
+                // from the content is kept
+                for (int i = 0; i < hit.fileRecords.size(); i++) {
+                    ObjectNode fileRecord = JSONUtilities.getObjectElement(hit.fileRecords, i);
+                    JSONUtilities.safePut(fileRecord, "origin", "upload");
+                    if (fileRecord.has("archiveFileName")) {
+                        JSONUtilities.safePut(fileRecord, "archiveFileName", fileName);
+                    } else {
+                        JSONUtilities.safePut(fileRecord, "fileName", fileName);
+                        JSONUtilities.safePut(fileRecord, "sourcePath", sourceFile.getAbsolutePath());
+                    }
+                    JSONUtilities.safePut(fileRecord, "declaredEncoding", declaredEncoding);
+                    JSONUtilities.safePut(fileRecord, "ingestStrategy", IngestStrategy.CACHE.getName());
+                }
+                detectEncodings(sourceFile, targetDir, hit.fileRecords);
+                update.retrieved(fileSize);
+                return new RetrievedFile(targetDir, hit.fileRecords, IngestStrategy.CACHE, hit.archive);
+            }
+        }
+
+        File file = allocateFile(targetDir, fileName);
+        IngestStrategy usedStrategy;
+        LocalFileSystemMetrics.Timer ingestTimer = LocalFileSystemMetrics.start("ingest");
+        try {
+            usedStrategy = ingestFile(sourceFile, file, strategy, update);
+            if (usedStrategy == IngestStrategy.TRANSFER) {
+                ingestTimer.read(fileSize).written(fileSize);
+            }
+            ingestTimer.success();
+        } finally {
+            ingestTimer.stop();
+        }
+
+        ObjectNode fileRecord = ParsingUtilities.mapper.createObjectNode();
+        JSONUtilities.safePut(fileRecord, "origin", "upload");
+        JSONUtilities.safePut(fileRecord, "declaredEncoding", declaredEncoding);
+        JSONUtilities.safePut(fileRecord, "declaredMimeType", fileTypeMap.getContentType(file.getName()));
+        JSONUtilities.safePut(fileRecord, "fileName", fileName);
+        JSONUtilities.safePut(fileRecord, "location", getRelativePath(file, targetDir));
+        JSONUtilities.safePut(fileRecord, "sourcePath", sourceFile.getAbsolutePath());
+        JSONUtilities.safePut(fileRecord, "ingestStrategy", usedStrategy.getName());
+        if (usedStrategy == IngestStrategy.REFERENCE) {
+            JSONUtilities.safePut(fileRecord, "referencePath", sourceFile.getAbsolutePath());
+        }
+        JSONUtilities.safePut(fileRecord, "size", fileSize);
+
+        ArrayNode fileRecords = ParsingUtilities.mapper.createArrayNode();
+        LocalFileSystemMetrics.Timer decompressTimer = LocalFileSystemMetrics.start("decompress");
+        boolean archive;
+        boolean uncompressed;
+        try {
+            archive = postProcessRetrievedFile(targetDir, file, fileRecord, fileRecords, progress);
+            uncompressed = !file.exists();
+            decompressTimer.success();
+        } catch (UncheckedIOException e) {
+            decompressTimer.stop();
+            throw e.getCause();
+        } catch (RuntimeException e) {
+            decompressTimer.stop();
+            throw e;
+        }
+        if (archive || uncompressed) {
+            decompressTimer.read(fileSize).written(sizeOf(targetDir, fileRecords));
+            decompressTimer.stop();
+        } else {
+            // plain files are not measured, they would hide the decompression latency
+            decompressTimer.discard();
+        }
+
+        // only worth caching when something was copied, uncompressed or exploded, a plain hard link is already free
+        if (cacheKey != null && (archive || uncompressed || usedStrategy == IngestStrategy.TRANSFER)) {
+            RawDataCache.put(cacheKey, targetDir, fileRecords, archive);
+        }
+        detectEncodings(sourceFile, targetDir, fileRecords);
+        return new RetrievedFile(targetDir, fileRecords, usedStrategy, archive);
+    }
+
+    /**
+     * Store the charset of each file as {@code detectedEncoding}, guessed from the head of the file once it is
+     * uncompressed. It is cached with the size and modification time of the workspace file, archive entries by
+     * their name. Unlike {@code encoding} it doesn't override the encoding chosen in the parser options.
+     */
+    static void detectEncodings(File sourceFile, File dir, ArrayNode fileRecords) {
+        for (int i = 0; i < fileRecords.size(); i++) {
+            ObjectNode fileRecord = JSONUtilities.getObjectElement(fileRecords, i);
+            String key = "charset|" + JSONUtilities.getString(fileRecord, "fileName", "");
+            String encoding = charsetCache.get(sourceFile, key);
+            if (encoding == null) {
+                File file = new File(dir, JSONUtilities.getString(fileRecord, "location", ""));
+                String compression = JSONUtilities.getString(fileRecord, "compression", null);
+                byte[] sample = new byte[compression != null ? CHARSET_SAMPLE_SIZE
+                        : (int) Math.min(CHARSET_SAMPLE_SIZE, Math.max(0L, file.length()))];
+                int length = 0;
+                try (InputStream is = openFile(file, compression)) {
+                    int n;
+                    while (length < sample.length && (n = is.read(sample, length, sample.length - length)) > 0) {
+                        length += n;
+                    }
+                } catch (IOException e) {
+                    logger.warn("Cannot detect the charset of " + file + ": " + e.getMessage());
+                    continue;
+                }
+                encoding = CharsetDetector.detect(sample, length);
+                charsetCache.put(sourceFile, key, encoding);
+            }
+            JSONUtilities.safePut(fileRecord, "detectedEncoding", encoding);
+        }
+    }
+
+    /**
+     * The content of {@code file}, uncompressed when it was kept {@code compression} compressed.
+     */
+    private static InputStream openFile(File file, String compression) throws IOException {
+        return compression == null ? Files.newInputStream(file.toPath()) : CompressedFiles.open(file, compression);
+    }
+
+    /**
+     * The encoding of a file record, its detected charset when none was set or declared.
+     */
+    static public String getEncoding(ObjectNode fileRecord) {
+        String encoding = ImportingUtilities.getEncoding(fileRecord);
+        if (encoding == null || encoding.isEmpty()) {
+            encoding = JSONUtilities.getString(fileRecord, "detectedEncoding", null);
+        }
+        return encoding;
+    }
+
+    /**
+     * Default the {@code encoding} parser option to the detected charset of the first file, so the parser
+     * UI shows it and it can still be changed there.
+     */
+    public static void setDetectedEncoding(ObjectNode options, List<ObjectNode> fileRecords) {
+        String encoding = JSONUtilities.getString(options, "encoding", null);
+        if ((encoding == null || encoding.isEmpty()) && !fileRecords.isEmpty()) {
+            encoding = getEncoding(fileRecords.get(0));
+            if (encoding != null) {
+                JSONUtilities.safePut(options, "encoding", encoding);
+            }
+        }
+    }
+
+    private static long sizeOf(File dir, ArrayNode fileRecords) {
+        long size = 0L;
+        for (int i = 0; i < fileRecords.size(); i++) {
+            size += new File(dir, JSONUtilities.getString(JSONUtilities.getObjectElement(fileRecords, i), "location", "")).length();
+        }
+        return size;
+    }
+
+    /**
+     * The selected workspace files: the {@code localFile} paths, one per line, followed by the files matching
+     * the {@code localPattern} glob. Relative paths are resolved against the workspace folder and every file
+     * must be inside it.
+     */
+    static List<File> resolveSourceFiles(File workspaceFolder, Properties parameters) throws IOException {
+        Path root = workspaceFolder.toPath().toAbsolutePath().normalize();
+        Set<File> files = new LinkedHashSet<>();
+
+        String localFile = parameters.getProperty("localFile");
+        if (localFile != null) {
+            for (String path : localFile.split("\n")) {
+                path = path.trim();
+                if (!path.isEmpty()) {
+                    File file = new File(path);
+                    files.add(file.isAbsolute() ? file : new File(workspaceFolder, path));
+                }
+            }
+        }
+
+        String pattern = parameters.getProperty("localPattern");
+        if (pattern != null && !pattern.trim().isEmpty()) {
+            pattern = pattern.trim();
+            int depth = pattern.contains("**") ? MAX_PATTERN_DEPTH : pattern.split("/").length;
+            WorkspaceListing.Result result = new WorkspaceListing(root)
+                    .setPattern(pattern)
+                    .setMaxDepth(depth)
+                    .setPage(0, 0)
+                    .list();
+            for (WorkspaceListing.Entry entry : result.entries) {
+                files.add(entry.path.toFile());
+            }
+        }
+
+        if (files.isEmpty()) {
+            throw new FileNotFoundException("No workspace file selected");
+        }
+        for (File file : files) {
+            if (!file.toPath().toAbsolutePath().normalize().startsWith(root)) {
+                throw new IOException("File " + file + " is outside of the workspace folder");
+            }
+            if (!file.isFile()) {
+                throw new FileNotFoundException(file.getPath());
+            }
+        }
+        return new ArrayList<>(files);
+    }
+
+    /**
+     * Run the tasks on at most {@code concurrency} threads and return their results in order.
+     * The first failure cancels the remaining tasks and is rethrown once the running ones have ended.
+     */
+    public static <T> List<T> runAll(List<Callable<T>> tasks, int concurrency, String name) throws Exception {
+        List<T> results = new ArrayList<>(tasks.size());
+        if (tasks.size() == 1 || concurrency <= 1) {
+            for (Callable<T> task : tasks) {
+                results.add(task.call());
+            }
+            return results;
+        }
+
+        ExecutorService executor = LocalFileSystemExecutors.newBoundedExecutor(name,
+                Math.min(concurrency, tasks.size()), tasks.size());
+        try {
+            List<Future<T>> futures = new ArrayList<>(tasks.size());
+            for (Callable<T> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<T> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof Exception ? (Exception) cause : new ExecutionException(cause);
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+            // a failed task's siblings may still be writing, the caller cleans up after them
+            boolean interrupted = false;
+            while (!executor.isTerminated()) {
+                try {
+                    executor.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static int getIntParameter(Properties parameters, String name, int defaultValue) {
+        try {
+            return Integer.parseInt(parameters.getProperty(name, String.valueOf(defaultValue)).trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    static IngestStrategy getIngestStrategy(Properties parameters) {
+        String value = parameters.getProperty("ingestStrategy");
+        if (value == null || value.isEmpty()) {
+            value = INGEST_STRATEGY;
+        }
+        return IngestStrategy.fromString(value);
+    }
+
+    /**
+     * Make the workspace file available as {@code target} inside the raw data dir.
+     *
+     * @return the strategy actually used, links fall back to a channel copy when they can't be created
+     */
+    static IngestStrategy ingestFile(File source, File target, IngestStrategy strategy, SavingUpdate update) throws IOException {
+        if (strategy == IngestStrategy.REFERENCE) {
+            try {
+                Files.createSymbolicLink(target.toPath(), source.getAbsoluteFile().toPath());
+                linked(source, update);
+                return IngestStrategy.REFERENCE;
+            } catch (IOException | UnsupportedOperationException e) {
+                logger.warn("Cannot reference " + source + " in place, copying it instead: " + e.getMessage());
+            }
+        }
+
+        if (strategy != IngestStrategy.TRANSFER && sameFileStore(source, target.getParentFile())) {
+            try {
+                Files.createLink(target.toPath(), source.toPath());
+                linked(source, update);
+                return IngestStrategy.LINK;
+            } catch (IOException | UnsupportedOperationException e) {
+                logger.warn("Cannot hard link " + source + ", copying it instead: " + e.getMessage());
+            }
+        } else if (strategy == IngestStrategy.LINK) {
+            logger.warn("Cannot hard link " + source + " across file systems, copying it instead");
+        }
+
+        try {
+            transferFile(source, target, update);
+        } catch (IOException e) {
+            target.delete();
+            throw e;
+        }
+        return IngestStrategy.TRANSFER;
+    }
+
+    private static void linked(File source, SavingUpdate update) {
+        if (update != null) {
+            update.retrieved(source.length());
+        }
+    }
+
+    private static boolean sameFileStore(File source, File dir) {
+        try {
+            return Files.getFileStore(source.toPath()).equals(Files.getFileStore(dir.toPath()));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Channel copy in chunks of {@link #TRANSFER_CHUNK_SIZE}, progress is reported and cancellation checked after each chunk.
+     * Files of a workspace root with a bandwidth cap are copied in smaller chunks, each waiting for its share.
+     * Large files go through {@link ResumableCopy}, so a canceled or interrupted copy goes on where it stopped.
+     */
+    static long transferFile(File source, File target, SavingUpdate update) throws IOException {
+        WorkspaceRoot root = WorkspaceRoot.of(source);
+        WorkspaceRoot.Bandwidth bandwidth = root == null ? null : root.getBandwidth();
+        if (ResumableCopy.isResumable(source)) {
+            long copied = ResumableCopy.copy(source, target, bandwidth, update);
+            if (copied >= 0) {
+                return copied;
+            }
+        }
+        long chunkSize = bandwidth == null || bandwidth.getBytesPerSecond() <= 0 ? TRANSFER_CHUNK_SIZE
+                : Math.max(64L * 1024, Math.min(TRANSFER_CHUNK_SIZE, bandwidth.getBytesPerSecond() / 10));
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0L;
+            while (position < size) {
+                if (update != null && update.isCanceled()) {
+                    throw new InterruptedIOException("Import of " + source.getName() + " canceled");
+                }
+                long chunk = Math.min(chunkSize, size - position);
+                if (bandwidth != null) {
+                    bandwidth.acquire(chunk);
+                }
+                long count = in.transferTo(position, chunk, out);
+                position += count;
+                if (update != null) {
+                    update.retrieved(count);
+                }
+            }
+            return position;
+        }
+    }
+
+    /**
+     * @throws UncheckedIOException when a zip archive can't be extracted, the signature of the hidden method
+     *                              doesn't allow an IOException
+     */
     static public boolean postProcessRetrievedFile(
             File rawDataDir, File file, ObjectNode fileRecord, ArrayNode fileRecords, final Progress progress) {
 
         String mimeType = JSONUtilities.getString(fileRecord, "declaredMimeType", null);
         String contentEncoding = JSONUtilities.getString(fileRecord, "declaredEncoding", null);
 
+        try {
+            if (PARALLEL_ARCHIVE_EXTRACTION && isZipArchive(file, contentEncoding)
+                    && explodeZipArchive(rawDataDir, file, fileRecord, fileRecords, progress)) {
+                file.delete();
+                return true;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
         InputStream archiveIS = tryOpenAsArchive(file, mimeType, contentEncoding);
         if (archiveIS != null) {
             try {
@@ -160,6 +708,17 @@ public class LocalImportingUtilities extends ImportingUtilities {
             }
         }
 
+        String compression = STREAM_DECOMPRESSION ? CompressedFiles.getCompression(file, mimeType, contentEncoding) : null;
+        if (compression != null) {
+            // kept as is, the format is guessed from the name of the uncompressed file
+            JSONUtilities.safePut(fileRecord, "compression", compression);
+            JSONUtilities.safePut(fileRecord, "declaredEncoding", (String) null);
+            JSONUtilities.safePut(fileRecord, "declaredMimeType", (String) null);
+            postProcessSingleRetrievedFile(new File(file.getParentFile(), CompressedFiles.stripExtension(file.getName())), fileRecord);
+            JSONUtilities.append(fileRecords, fileRecord);
+            return false;
+        }
+
         InputStream uncompressedIS = tryOpenAsCompressedFile(file, mimeType, contentEncoding);
         if (uncompressedIS != null) {
             try {
@@ -186,6 +745,130 @@ public class LocalImportingUtilities extends ImportingUtilities {
     }
 
 
+    /**
+     * Same zip detection as {@link #tryOpenAsArchive(File, String, String)}.
+     */
+    private static boolean isZipArchive(File file, String contentType) {
+        String fileName = file.getName();
+        return fileName.endsWith(".zip")
+                || fileName.endsWith(".kmz")
+                || "application/x-zip-compressed".equals(contentType)
+                || "application/zip".equals(contentType)
+                || "application/x-compressed".equals(contentType)
+                || "multipar/x-zip".equals(contentType);
+    }
+
+    /**
+     * Zip files have a central directory, so their entries are inflated concurrently instead of one after the other
+     * like {@link #explodeArchive}. The entries being extracted at any time add up to at most
+     * EXT_LOCAL_FILE_SYSTEM_ARCHIVE_IN_FLIGHT_MB of uncompressed size, as declared in the central directory; an
+     * entry of unknown or larger size is extracted alone. File records come out in the archive order.
+     *
+     * @return false when the file can't be read as a zip, it is then handled by the serial path
+     * @throws IOException when an entry can't be extracted or the import was canceled, no entry is kept then
+     */
+    static boolean explodeZipArchive(final File rawDataDir, File file, ObjectNode archiveFileRecord, ArrayNode fileRecords,
+                                     final Progress progress) throws IOException {
+        ZipFile zipFile;
+        try {
+            zipFile = new ZipFile(file);
+        } catch (IOException e) {
+            return false;
+        }
+
+        try {
+            List<ZipEntry> entries = new ArrayList<>();
+            Enumeration<? extends ZipEntry> en = zipFile.entries();
+            while (en.hasMoreElements()) {
+                ZipEntry entry = en.nextElement();
+                if (!entry.isDirectory()) {
+                    entries.add(entry);
+                }
+            }
+
+            // allocate every target up front, allocateFile isn't safe to call from several threads
+            final File[] targets = new File[entries.size()];
+            for (int i = 0; i < entries.size(); i++) {
+                targets[i] = allocateFile(rawDataDir, entries.get(i).getName());
+                targets[i].createNewFile();
+            }
+
+            final long[] sizes = new long[entries.size()];
+            final Semaphore inFlight = new Semaphore(ARCHIVE_IN_FLIGHT_KB);
+            List<Callable<Void>> tasks = new ArrayList<>(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                final int index = i;
+                final ZipEntry entry = entries.get(i);
+                tasks.add(() -> {
+                    // an unknown size takes the whole cap, the entry could be of any size
+                    int permits = entry.getSize() < 0 ? ARCHIVE_IN_FLIGHT_KB
+                            : (int) Math.max(1L, Math.min(ARCHIVE_IN_FLIGHT_KB, (entry.getSize() + 1023) / 1024));
+                    inFlight.acquire(permits);
+                    try {
+                        progress.setProgress("Extracting " + entry.getName(), -1);
+                        sizes[index] = extractZipEntry(zipFile, entry, targets[index], progress);
+                        return null;
+                    } finally {
+                        inFlight.release(permits);
+                    }
+                });
+            }
+
+            try {
+                runAll(tasks, ARCHIVE_THREADS, "archive-explode");
+            } catch (Exception e) {
+                // the workers are done, nothing writes to the targets anymore
+                for (File target : targets) {
+                    target.delete();
+                }
+                if (progress.isCanceled()) {
+                    throw new InterruptedIOException("Extraction of " + file.getName() + " canceled");
+                }
+                throw e instanceof IOException ? (IOException) e
+                        : new IOException("Cannot extract " + file.getName() + ": " + e.getMessage(), e);
+            }
+
+            for (int i = 0; i < entries.size(); i++) {
+                String fileName2 = entries.get(i).getName();
+                ObjectNode fileRecord2 = ParsingUtilities.mapper.createObjectNode();
+                JSONUtilities.safePut(fileRecord2, "origin", JSONUtilities.getString(archiveFileRecord, "origin", null));
+                JSONUtilities.safePut(fileRecord2, "declaredEncoding", (String) null);
+                JSONUtilities.safePut(fileRecord2, "declaredMimeType", (String) null);
+                JSONUtilities.safePut(fileRecord2, "fileName", fileName2);
+                JSONUtilities.safePut(fileRecord2, "archiveFileName", JSONUtilities.getString(archiveFileRecord, "fileName", null));
+                JSONUtilities.safePut(fileRecord2, "location", getRelativePath(targets[i], rawDataDir));
+                JSONUtilities.safePut(fileRecord2, "size", sizes[i]);
+                postProcessSingleRetrievedFile(targets[i], fileRecord2);
+
+                JSONUtilities.append(fileRecords, fileRecord2);
+            }
+        } finally {
+            try {
+                zipFile.close();
+            } catch (IOException e) {
+                logger.warn("Cannot close " + file.getName() + ": " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    private static long extractZipEntry(ZipFile zipFile, ZipEntry entry, File target, Progress progress) throws IOException {
+        long length = 0L;
+        try (InputStream is = zipFile.getInputStream(entry);
+             OutputStream os = new FileOutputStream(target)) {
+            byte[] bytes = new byte[64 * 1024];
+            int c;
+            while ((c = is.read(bytes)) > 0) {
+                if (progress.isCanceled()) {
+                    throw new InterruptedIOException("Extraction of " + entry.getName() + " canceled");
+                }
+                os.write(bytes, 0, c);
+                length += c;
+            }
+        }
+        return length;
+    }
+
     static String guessBetterFormat(ImportingJob job, String bestFormat) {
         ObjectNode retrievalRecord = job.getRetrievalRecord();
         return retrievalRecord != null ? guessBetterFormat(job, retrievalRecord, bestFormat) : bestFormat;
@@ -202,34 +885,436 @@ public class LocalImportingUtilities extends ImportingUtilities {
             String encoding = getEncoding(firstFileRecord);
             String location = JSONUtilities.getString(firstFileRecord, "location", (String) null);
             if (location != null) {
-                File file = new File(location);
-
-                while (true) {
-                    String betterFormat = null;
-                    List<FormatGuesser> guessers = (List) ImportingManager.formatToGuessers.get(bestFormat);
-                    if (guessers != null) {
-                        Iterator var9 = guessers.iterator();
-
-                        while (var9.hasNext()) {
-                            FormatGuesser guesser = (FormatGuesser) var9.next();
-                            betterFormat = guesser.guess(file, encoding, bestFormat);
-                            if (betterFormat != null) {
-                                break;
+                File file = new File(job.getRawDataDir(), location);
+
+                String sourcePath = JSONUtilities.getString(firstFileRecord, "sourcePath", null);
+                File sourceFile = sourcePath == null ? null : new File(sourcePath);
+                String cacheKey = bestFormat + "|" + encoding;
+                if (sourceFile != null) {
+                    String cachedFormat = formatGuessCache.get(sourceFile, cacheKey);
+                    if (cachedFormat != null) {
+                        return cachedFormat;
+                    }
+                }
+
+                // every text guesser reads the same head, read it once into a small local file
+                File sample = writeFormatSample(job, file,
+                        JSONUtilities.getString(firstFileRecord, "compression", null));
+                try {
+                    while (true) {
+                        String betterFormat = null;
+                        List<FormatGuesser> guessers = (List) ImportingManager.formatToGuessers.get(bestFormat);
+                        if (guessers != null) {
+                            File guessedFile = bestFormat.startsWith("text") ? sample : file;
+                            Iterator var9 = guessers.iterator();
+
+                            while (var9.hasNext()) {
+                                FormatGuesser guesser = (FormatGuesser) var9.next();
+                                betterFormat = guesser.guess(guessedFile, encoding, bestFormat);
+                                if (betterFormat != null) {
+                                    break;
+                                }
                             }
                         }
-                    }
 
-                    if (betterFormat == null || betterFormat.equals(bestFormat)) {
-                        break;
+                        if (betterFormat == null || betterFormat.equals(bestFormat)) {
+                            break;
+                        }
+
+                        bestFormat = betterFormat;
+                    }
+                } finally {
+                    if (sample != file) {
+                        sample.delete();
                     }
+                }
 
-                    bestFormat = betterFormat;
+                if (sourceFile != null) {
+                    formatGuessCache.put(sourceFile, cacheKey, bestFormat);
                 }
             }
         }
         return bestFormat;
     }
 
+    /**
+     * Copy the head of {@code file} next to the raw data dir, or return {@code file} itself when it is smaller than the sample.
+     * The head of a compressed file is always copied uncompressed.
+     */
+    private static File writeFormatSample(ImportingJob job, File file, String compression) {
+        if (compression == null && file.length() <= FORMAT_SAMPLE_SIZE) {
+            return file;
+        }
+        File sample = new File(job.dir, "format-sample");
+        if (compression != null) {
+            try (InputStream is = CompressedFiles.open(file, compression);
+                 OutputStream os = Files.newOutputStream(sample.toPath())) {
+                byte[] bytes = new byte[64 * 1024];
+                long length = 0L;
+                int n;
+                while (length < FORMAT_SAMPLE_SIZE
+                        && (n = is.read(bytes, 0, (int) Math.min(bytes.length, FORMAT_SAMPLE_SIZE - length))) > 0) {
+                    os.write(bytes, 0, n);
+                    length += n;
+                }
+                return sample;
+            } catch (IOException e) {
+                logger.warn("Cannot sample " + file + ", guessing on the compressed file: " + e.getMessage());
+                sample.delete();
+                return file;
+            }
+        }
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(sample.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = 0L;
+            while (position < FORMAT_SAMPLE_SIZE) {
+                long count = in.transferTo(position, FORMAT_SAMPLE_SIZE - position, out);
+                if (count <= 0) {
+                    break;
+                }
+                position += count;
+            }
+            return sample;
+        } catch (IOException e) {
+            logger.warn("Cannot sample " + file + ", guessing on the whole file: " + e.getMessage());
+            sample.delete();
+            return file;
+        }
+    }
+
+    /**
+     * Parse the selected files into a new project on the calling thread, and keep what the project needs to
+     * append the lines later written to its file.
+     *
+     * @return the id of the project, created only when no exception was added to {@code exceptions}
+     */
+    static long createProject(ImportingJob job, String format, ObjectNode options, List<Exception> exceptions) {
+        // read before the parse, the source may grow while the project is created
+        ObjectNode appendState = LocalFileAppend.prepare(job, format, options);
+        long projectID = createProjectSynchronously(job, format, options, exceptions);
+        if (appendState != null && exceptions.isEmpty() && !job.canceled) {
+            LocalFileAppend.track(job, projectID, appendState);
+        }
+        return projectID;
+    }
+
+    /**
+     * Same as {@link ImportingUtilities#createProject} run synchronously, through {@link #parse}.
+     */
+    private static long createProjectSynchronously(ImportingJob job, String format, ObjectNode options, List<Exception> exceptions) {
+        ImportingManager.Format record = ImportingManager.formatToRecord.get(format);
+        if (record == null || record.parser == null) {
+            return -1;
+        }
+
+        job.setState("creating-project");
+
+        Project project = new Project();
+        ProjectMetadata pm = createProjectMetadata(options);
+        parse(record, project, pm, job, job.getSelectedFileRecords(), format, -1, options, exceptions);
+
+        if (!job.canceled) {
+            if (exceptions.size() == 0) {
+                project.update(); // update all internal models, indexes, caches, etc.
+
+                ProjectManager.singleton.registerProject(project, pm);
+
+                job.setProjectID(project.id);
+                job.setState("created-project");
+            } else {
+                job.setError(exceptions);
+            }
+            job.touch();
+            job.updating = false;
+        }
+        return project.id;
+    }
+
+    /**
+     * Parse {@code fileRecords} with the parser of {@code record}. Line based files kept compressed are read through
+     * a decompressor inflating ahead on another thread, the way {@link ImportingParserBase} reads plain files.
+     * Compressed files of any other format are uncompressed to the raw data dir first.
+     */
+    static void parse(ImportingManager.Format record, Project project, ProjectMetadata metadata, ImportingJob job,
+                      List<ObjectNode> fileRecords, String format, int limit, ObjectNode options,
+                      List<Exception> exceptions) {
+        boolean compressed = false;
+        for (ObjectNode fileRecord : fileRecords) {
+            compressed |= fileRecord.has("compression");
+        }
+        if (!compressed) {
+            record.parser.parse(project, metadata, job, fileRecords, format, limit, options, exceptions);
+            return;
+        }
+        if (!isStreamable(format)) {
+            inflate(job, fileRecords);
+            record.parser.parse(project, metadata, job, fileRecords, format, limit, options, exceptions);
+            return;
+        }
+
+        ImportingParserBase parser = (ImportingParserBase) record.parser;
+        MultiFileReadingProgress progress = ImporterUtilities.createMultiFileReadingProgress(job, fileRecords);
+        for (ObjectNode fileRecord : fileRecords) {
+            if (job.canceled) {
+                break;
+            }
+
+            try {
+                String compression = JSONUtilities.getString(fileRecord, "compression", null);
+                if (compression != null) {
+                    parseCompressedFile(parser, project, metadata, job, fileRecord, compression, limit, options,
+                            exceptions, progress);
+                } else {
+                    parser.parseOneFile(project, metadata, job, fileRecord, limit, options, exceptions, progress);
+                }
+            } catch (IOException e) {
+                exceptions.add(e);
+            }
+
+            if (limit > 0 && project.rows.size() >= limit) {
+                break;
+            }
+        }
+    }
+
+    private static void parseCompressedFile(ImportingParserBase parser, Project project, ProjectMetadata metadata,
+                                            ImportingJob job, ObjectNode fileRecord, String compression, int limit,
+                                            ObjectNode options, List<Exception> exceptions,
+                                            final MultiFileReadingProgress progress) throws IOException {
+        final File file = getFile(job, fileRecord);
+        final String fileSource = getFileSource(fileRecord);
+
+        progress.startFile(fileSource);
+        try {
+            // the progress follows the compressed bytes, the file sizes it is measured against
+            InputStream inputStream = CompressedFiles.openReadAhead(file, compression, is -> new TrackingInputStream(is) {
+                @Override
+                protected long track(long bytesRead) {
+                    long l = super.track(bytesRead);
+                    progress.readingFile(fileSource, this.bytesRead);
+                    return l;
+                }
+            });
+            try {
+                if (usesInputStream(parser)) {
+                    parser.parseOneFile(project, metadata, job, fileSource, inputStream, limit, options, exceptions);
+                } else {
+                    String commonEncoding = JSONUtilities.getString(options, "encoding", null);
+                    if (commonEncoding != null && commonEncoding.isEmpty()) {
+                        commonEncoding = null;
+                    }
+
+                    Reader reader = getReaderFromStream(inputStream, fileRecord, commonEncoding);
+                    parser.parseOneFile(project, metadata, job, fileSource, reader, limit, options, exceptions);
+                }
+            } finally {
+                inputStream.close();
+            }
+        } finally {
+            progress.endFile(fileSource, file.length());
+        }
+    }
+
+    /**
+     * Whether compressed files in {@code format} can be parsed from a stream, only the line based parsers read
+     * nothing but the stream {@link ImportingParserBase} opens.
+     */
+    static boolean isStreamable(String format) {
+        ImportingManager.Format record = format == null ? null : ImportingManager.formatToRecord.get(format);
+        return record != null && format.startsWith("text/line-based") && record.parser instanceof ImportingParserBase;
+    }
+
+    private static boolean usesInputStream(ImportingParserBase parser) {
+        try {
+            Field field = ImportingParserBase.class.getDeclaredField("useInputStream");
+            field.setAccessible(true);
+            return field.getBoolean(parser);
+        } catch (ReflectiveOperationException | SecurityException e) {
+            // the line based parsers all take a reader
+            return false;
+        }
+    }
+
+    /**
+     * Uncompress the compressed files among {@code fileRecords} to the raw data dir, for the parsers that need
+     * a plain file. The records are updated to point to the uncompressed file.
+     */
+    static void inflate(ImportingJob job, List<ObjectNode> fileRecords) {
+        for (ObjectNode fileRecord : fileRecords) {
+            synchronized (fileRecord) {
+                String compression = JSONUtilities.getString(fileRecord, "compression", null);
+                if (compression == null) {
+                    continue;
+                }
+                File file = getFile(job, fileRecord);
+                File target = allocateFile(job.getRawDataDir(),
+                        CompressedFiles.stripExtension(JSONUtilities.getString(fileRecord, "location", file.getName())));
+                job.setProgress(-1, "Uncompressing " + getFileSource(fileRecord));
+                LocalFileSystemMetrics.Timer timer = LocalFileSystemMetrics.start("decompress");
+                try (InputStream is = CompressedFiles.open(file, compression)) {
+                    Files.copy(is, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    timer.read(file.length()).written(target.length()).success();
+                } catch (IOException e) {
+                    logger.warn("Cannot uncompress " + file + ": " + e.getMessage());
+                    target.delete();
+                    continue;
+                } finally {
+                    timer.stop();
+                }
+                file.delete();
+                JSONUtilities.safePut(fileRecord, "location", getRelativePath(target, job.getRawDataDir()));
+                fileRecord.remove("compression");
+            }
+        }
+    }
+
+    /**
+     * The parser options of {@code format} for the selected files, guessed from their preview sample, with the
+     * detected charset as default encoding.
+     */
+    public static ObjectNode createParserUIInitializationData(ImportingJob job, ImportingManager.Format record, String format) {
+        List<ObjectNode> fileRecords = getPreviewFileRecords(job, format, ParsingUtilities.mapper.createObjectNode());
+        ObjectNode options = record.parser.createParserUIInitializationData(job, fileRecords, format);
+        setDetectedEncoding(options, fileRecords);
+        return options;
+    }
+
+    /**
+     * Same as {@link ImportingUtilities#previewParse}, except that line based files larger than the preview sample
+     * are parsed from a copy of their head, so the preview takes the same time whatever the file size.
+     */
+    static public void previewParse(ImportingJob job, String format, ObjectNode optionObj, List<Exception> exceptions) {
+        ImportingManager.Format record = ImportingManager.formatToRecord.get(format);
+        if (record == null || record.parser == null) {
+            return;
+        }
+
+        job.prepareNewProject();
+        parse(
+                record,
+                job.project,
+                job.metadata,
+                job,
+                getPreviewFileRecords(job, format, optionObj),
+                format,
+                100,
+                optionObj,
+                exceptions
+        );
+        job.project.update();
+    }
+
+    /**
+     * The selected file records, those of line based files larger than the sample pointing to the first lines
+     * of the file instead. The samples are cut once per job, on a line end, and reused by the next previews.
+     * Other formats can't be cut and are parsed whole, as are encodings with a multi byte line end. Compressed
+     * files are always sampled, or uncompressed when they can't be.
+     */
+    static List<ObjectNode> getPreviewFileRecords(ImportingJob job, String format, ObjectNode options) {
+        List<ObjectNode> fileRecords = job.getSelectedFileRecords();
+        if (!isStreamable(format)) {
+            inflate(job, fileRecords);
+            return fileRecords;
+        }
+
+        List<ObjectNode> previewRecords = new ArrayList<>(fileRecords.size());
+        for (ObjectNode fileRecord : fileRecords) {
+            String encoding = JSONUtilities.getString(options, "encoding", null);
+            if (encoding == null || encoding.isEmpty()) {
+                encoding = getEncoding(fileRecord);
+            }
+            boolean singleByteNewline = LocalFileAppend.isNewlineSingleByte(encoding == null ? "UTF-8" : encoding);
+            if (!singleByteNewline) {
+                inflate(job, Collections.singletonList(fileRecord));
+            }
+            String compression = JSONUtilities.getString(fileRecord, "compression", null);
+            String location = JSONUtilities.getString(fileRecord, "location", null);
+            File file = location == null ? null : getFile(job, location);
+            long sampleSize = compression != null ? COMPRESSED_PREVIEW_SAMPLE_BYTES : PREVIEW_SAMPLE_BYTES;
+            if (file == null || !singleByteNewline
+                    || (compression == null && (sampleSize <= 0 || file.length() <= sampleSize))) {
+                previewRecords.add(fileRecord);
+                continue;
+            }
+
+            String sampleLocation = PREVIEW_SAMPLE_DIR + File.separator + location;
+            File sample = getFile(job, sampleLocation);
+            try {
+                if (!sample.exists()) {
+                    writeHead(file, compression, sample, sampleSize);
+                }
+                ObjectNode previewRecord = fileRecord.deepCopy();
+                JSONUtilities.safePut(previewRecord, "location", sampleLocation);
+                previewRecord.remove("compression");
+                previewRecords.add(previewRecord);
+            } catch (IOException e) {
+                logger.warn("Cannot sample " + file + " for the preview, parsing the whole file: " + e.getMessage());
+                previewRecords.add(fileRecord);
+            }
+        }
+        return previewRecords;
+    }
+
+    /**
+     * Copy the lines of the first {@code maxBytes} bytes of {@code file}, uncompressed, to {@code target}. The head
+     * is streamed through a fixed buffer, then cut after its last line end.
+     */
+    private static void writeHead(File file, String compression, File target, long maxBytes) throws IOException {
+        File parent = target.getParentFile();
+        parent.mkdirs();
+        File temp = File.createTempFile(".sample", null, parent);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            long length = 0L;
+            // just past the last line end written, 0 for none
+            long end = 0L;
+            try (InputStream is = openFile(file, compression);
+                 FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+                OutputStream os = Channels.newOutputStream(channel);
+                int n;
+                while (length < maxBytes
+                        && (n = is.read(buffer, 0, (int) Math.min(buffer.length, maxBytes - length))) > 0) {
+                    os.write(buffer, 0, n);
+                    for (int i = n - 1; i >= 0; i--) {
+                        if (buffer[i] == '\n') {
+                            end = length + i + 1;
+                            break;
+                        }
+                    }
+                    length += n;
+                }
+                // a single line longer than the sample is kept whole
+                if (end > 0) {
+                    channel.truncate(end);
+                }
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    static public void updateJobWithNewFileSelection(ImportingJob job, ArrayNode fileSelectionArray) {
+        job.setFileSelection(fileSelectionArray);
+
+        String bestFormat = getCommonFormatForSelectedFiles(job, fileSelectionArray);
+
+        ArrayNode rankedFormats = ParsingUtilities.mapper.createArrayNode();
+        guessAndRankFormats(job, bestFormat, rankedFormats);
+        job.setRankedFormats(rankedFormats);
+    }
+
+    static void guessAndRankFormats(ImportingJob job, String bestFormat, ArrayNode rankedFormats) {
+        LocalFileSystemMetrics.Timer timer = LocalFileSystemMetrics.start("guess-format");
+        try {
+            rankFormats(job, guessBetterFormat(job, bestFormat), rankedFormats);
+            timer.success();
+        } finally {
+            timer.stop();
+        }
+    }
+
     static void rankFormats(ImportingJob job, final String bestFormat, ArrayNode rankedFormats) {
         final Map<String, String[]> formatToSegments = new HashMap();
         boolean download = bestFormat == null ? true : ((ImportingManager.Format) ImportingManager.formatToRecord.get(bestFormat)).download;
@@ -288,17 +1373,25 @@ public class LocalImportingUtilities extends ImportingUtilities {
 
     }
 
-    private abstract static class SavingUpdate {
+    abstract static class SavingUpdate {
         public long totalExpectedSize;
         public long totalRetrievedSize;
 
-        private SavingUpdate() {
+        SavingUpdate() {
             this.totalExpectedSize = 0L;
             this.totalRetrievedSize = 0L;
         }
 
         public abstract void savedMore();
 
+        /**
+         * Files are copied in parallel, every thread reports through here.
+         */
+        public synchronized void retrieved(long count) {
+            this.totalRetrievedSize += count;
+            savedMore();
+        }
+
         public abstract boolean isCanceled();
     }
 
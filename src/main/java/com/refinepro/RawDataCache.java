@@ -0,0 +1,287 @@
+package com.refinepro;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.refine.importing.ImportingUtilities;
+import com.google.refine.util.JSONUtilities;
+import com.google.refine.util.ParsingUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extension wide cache of prepared raw data: the uncompressed or exploded files of a workspace file, keyed by
+ * its path, size and modification time, or by its content hash when EXT_LOCAL_FILE_SYSTEM_CACHE_HASH is set.
+ * Jobs get hard links to the cached files. Each entry is built in a temporary folder and renamed in place, so
+ * concurrent jobs only ever see complete entries. The least recently used entries are evicted once the cache
+ * grows over EXT_LOCAL_FILE_SYSTEM_CACHE_MB, the size of each entry is kept in its records so the cache is only
+ * walked once. A file not hashed yet is read once for its hash before being copied, content keys cost an extra
+ * read of each file seen for the first time.
+ */
+public class RawDataCache {
+
+    private static final Logger logger = LoggerFactory.getLogger("RawDataCache");
+
+    private static final long BUDGET = LocalFileSystemConfig.getLong("EXT_LOCAL_FILE_SYSTEM_CACHE_MB", 0L) * 1024 * 1024;
+
+    private static final File CACHE_DIR = new File(LocalFileSystemConfig.getString("EXT_LOCAL_FILE_SYSTEM_CACHE_DIR",
+            new File(System.getProperty("java.io.tmpdir"), "local-file-system-cache").getPath()));
+
+    private static final boolean CONTENT_HASH = LocalFileSystemConfig.getBoolean("EXT_LOCAL_FILE_SYSTEM_CACHE_HASH", false);
+
+    private static final String RECORDS_FILE = "records.json";
+    private static final String DATA_DIR = "data";
+    private static final String TEMP_MARKER = ".tmp-";
+    private static final long STALE_TEMP_MILLIS = 60L * 60 * 1000;
+
+    private static final FileStateCache<String> contentHashes = new FileStateCache<>(4096);
+    private static final Object evictionLock = new Object();
+    // entries being linked into a job, eviction skips them
+    private static final Map<String, Integer> inUse = new HashMap<>();
+    // size of each entry and their total, read from the cache folder on the first eviction
+    private static Map<String, Long> sizes;
+    private static long total;
+
+    public static class Hit {
+        public final ArrayNode fileRecords;
+        public final boolean archive;
+
+        Hit(ArrayNode fileRecords, boolean archive) {
+            this.fileRecords = fileRecords;
+            this.archive = archive;
+        }
+    }
+
+    private RawDataCache() {
+    }
+
+    public static boolean isEnabled() {
+        return BUDGET > 0L;
+    }
+
+    public static String key(File source) throws IOException {
+        String identity;
+        if (CONTENT_HASH) {
+            String hash = contentHashes.get(source, "sha-256");
+            if (hash == null) {
+                hash = hash(source);
+                contentHashes.put(source, "sha-256", hash);
+            }
+            identity = hash + "|" + source.length();
+        } else {
+            identity = source.getAbsolutePath() + "|" + source.length() + "|" + source.lastModified();
+        }
+        return toHex(digest().digest(identity.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Link the cached files of {@code key} into {@code targetDir}.
+     *
+     * @return the file records with locations relative to {@code targetDir}, or null when the entry is missing
+     * or was evicted meanwhile
+     */
+    public static Hit get(String key, File targetDir) {
+        File entryDir = new File(CACHE_DIR, key);
+        File recordsFile = new File(entryDir, RECORDS_FILE);
+        // waits for a running eviction, the entry can't be evicted once it is counted
+        synchronized (evictionLock) {
+            if (!recordsFile.isFile()) {
+                return null;
+            }
+            inUse.merge(key, 1, Integer::sum);
+        }
+        List<File> linked = new ArrayList<>();
+        try {
+            ObjectNode entry = ParsingUtilities.mapper.readValue(recordsFile, ObjectNode.class);
+            ArrayNode cachedRecords = JSONUtilities.getArray(entry, "files");
+            ArrayNode fileRecords = ParsingUtilities.mapper.createArrayNode();
+            for (int i = 0; i < cachedRecords.size(); i++) {
+                ObjectNode fileRecord = JSONUtilities.getObjectElement(cachedRecords, i);
+                String location = JSONUtilities.getString(fileRecord, "location", "");
+                File target = ImportingUtilities.allocateFile(targetDir, location);
+                linkOrCopy(new File(new File(entryDir, DATA_DIR), location), target);
+                linked.add(target);
+                JSONUtilities.safePut(fileRecord, "location", ImportingUtilities.getRelativePath(target, targetDir));
+                JSONUtilities.append(fileRecords, fileRecord);
+            }
+            Files.setLastModifiedTime(entryDir.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+            return new Hit(fileRecords, JSONUtilities.getBoolean(entry, "archive", false));
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Cannot use raw data cache entry " + key + ": " + e.getMessage());
+            // the files are copied again by the caller, under the same names
+            for (File file : linked) {
+                file.delete();
+            }
+            return null;
+        } finally {
+            synchronized (evictionLock) {
+                inUse.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+            }
+        }
+    }
+
+    /**
+     * Store the prepared files of a workspace file, {@code fileRecords} locations are relative to {@code dir}.
+     */
+    public static void put(String key, File dir, ArrayNode fileRecords, boolean archive) {
+        File entryDir = new File(CACHE_DIR, key);
+        if (entryDir.exists()) {
+            return;
+        }
+        File tempDir = new File(CACHE_DIR, key + TEMP_MARKER + Thread.currentThread().getId() + "-" + System.nanoTime());
+        try {
+            File dataDir = new File(tempDir, DATA_DIR);
+            long size = 0L;
+            for (int i = 0; i < fileRecords.size(); i++) {
+                String location = JSONUtilities.getString(JSONUtilities.getObjectElement(fileRecords, i), "location", "");
+                File target = new File(dataDir, location);
+                target.getParentFile().mkdirs();
+                linkOrCopy(new File(dir, location), target);
+                size += target.length();
+            }
+            ObjectNode entry = ParsingUtilities.mapper.createObjectNode();
+            JSONUtilities.safePut(entry, "archive", archive);
+            JSONUtilities.safePut(entry, "size", size);
+            JSONUtilities.safePut(entry, "files", fileRecords.deepCopy());
+            ParsingUtilities.mapper.writeValue(new File(tempDir, RECORDS_FILE), entry);
+
+            try {
+                Files.move(tempDir.toPath(), entryDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+                // another job cached the same file first
+                LocalFileSystemFiles.deleteRecursively(tempDir.toPath());
+                return;
+            }
+            evict(key, size);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Cannot cache raw data " + key + ": " + e.getMessage());
+            LocalFileSystemFiles.deleteRecursively(tempDir.toPath());
+        }
+    }
+
+    /**
+     * Count the new entry {@code key}, then delete the least recently used entries until the cache fits in its
+     * budget. The evicted entries are renamed away under the lock and deleted after it, so lookups don't wait for
+     * the deletions.
+     */
+    static void evict(String key, long size) {
+        List<File> evicted = new ArrayList<>();
+        synchronized (evictionLock) {
+            if (sizes == null) {
+                loadSizes();
+            } else if (sizes.put(key, size) == null) {
+                total += size;
+            }
+            if (total <= BUDGET) {
+                return;
+            }
+            File[] children = CACHE_DIR.listFiles();
+            if (children == null) {
+                return;
+            }
+            List<File> entries = new ArrayList<>();
+            for (File child : children) {
+                if (sizes.containsKey(child.getName()) && !inUse.containsKey(child.getName())) {
+                    entries.add(child);
+                }
+            }
+            entries.sort(Comparator.comparingLong(File::lastModified));
+            for (File entry : entries) {
+                if (total <= BUDGET) {
+                    break;
+                }
+                File trash = new File(CACHE_DIR, entry.getName() + TEMP_MARKER + "evicted-" + System.nanoTime());
+                if (entry.renameTo(trash)) {
+                    total -= sizes.remove(entry.getName());
+                    evicted.add(trash);
+                }
+            }
+        }
+        for (File trash : evicted) {
+            LocalFileSystemFiles.deleteRecursively(trash.toPath());
+        }
+    }
+
+    /**
+     * Read the size of every entry from its records, walking the entries cached before sizes were recorded, and
+     * delete the temporary folders left behind by a crash.
+     */
+    private static void loadSizes() {
+        sizes = new HashMap<>();
+        total = 0L;
+        File[] children = CACHE_DIR.listFiles();
+        if (children == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File child : children) {
+            if (child.getName().contains(TEMP_MARKER)) {
+                if (now - child.lastModified() > STALE_TEMP_MILLIS) {
+                    LocalFileSystemFiles.deleteRecursively(child.toPath());
+                }
+                continue;
+            }
+            long size = -1L;
+            try {
+                ObjectNode entry = ParsingUtilities.mapper.readValue(new File(child, RECORDS_FILE), ObjectNode.class);
+                size = entry.has("size") ? entry.get("size").asLong() : -1L;
+            } catch (IOException | RuntimeException e) {
+                // not an entry, or one cached before sizes were recorded
+            }
+            if (size < 0L) {
+                size = LocalFileSystemFiles.sizeOf(child.toPath());
+            }
+            sizes.put(child.getName(), size);
+            total += size;
+        }
+    }
+
+    private static void linkOrCopy(File source, File target) throws IOException {
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static String hash(File file) throws IOException {
+        MessageDigest digest = digest();
+        try (InputStream is = Files.newInputStream(file.toPath())) {
+            byte[] bytes = new byte[1024 * 1024];
+            int c;
+            while ((c = is.read(bytes)) > 0) {
+                digest.update(bytes, 0, c);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
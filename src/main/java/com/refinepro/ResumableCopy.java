@@ -0,0 +1,309 @@
+package com.refinepro;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.refine.ProjectManager;
+import com.google.refine.io.FileProjectManager;
+import com.google.refine.util.JSONUtilities;
+import com.google.refine.util.ParsingUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Copies of large workspace files that survive a cancelled import or a restart. Each copy is made in a folder of
+ * its own, keyed by the source path, size and modification time, one chunk at a time, and the CRC-32 of every
+ * chunk is appended to a checkpoint file. Loading the same source again checks the chunks already copied against
+ * their checksums and goes on from the first one that doesn't match. The finished copy is moved into the job.
+ * Partial copies left alone for EXT_LOCAL_FILE_SYSTEM_RESUME_KEEP_HOURS, or whose source changed, are deleted
+ * on a schedule.
+ */
+public class ResumableCopy {
+
+    private static final Logger logger = LoggerFactory.getLogger("ResumableCopy");
+
+    // smaller files are copied in one go, 0 or less never resumes
+    private static final long MIN_SIZE = LocalFileSystemConfig.getLong("EXT_LOCAL_FILE_SYSTEM_RESUME_MB", 1024L) * 1024 * 1024;
+
+    private static final long CHUNK_SIZE = Math.max(1L,
+            LocalFileSystemConfig.getLong("EXT_LOCAL_FILE_SYSTEM_RESUME_CHUNK_MB", 8L)) * 1024 * 1024;
+
+    private static final long KEEP_MILLIS = TimeUnit.HOURS.toMillis(
+            LocalFileSystemConfig.getLong("EXT_LOCAL_FILE_SYSTEM_RESUME_KEEP_HOURS", 24L));
+
+    private static final long CLEANUP_MINUTES = Math.max(1L,
+            LocalFileSystemConfig.getLong("EXT_LOCAL_FILE_SYSTEM_RESUME_CLEANUP_MINUTES", 60L));
+
+    private static final String CONFIGURED_DIR = LocalFileSystemConfig.getString("EXT_LOCAL_FILE_SYSTEM_RESUME_DIR", null);
+
+    private static final String DATA_FILE = "data";
+    private static final String SOURCE_FILE = "source.json";
+    private static final String CHUNKS_FILE = "chunks.crc";
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    // keys being copied or cleaned up, a second import of the same source copies on its own
+    private static final Set<String> active = new HashSet<>();
+
+    private static ScheduledExecutorService cleaner;
+
+    private ResumableCopy() {
+    }
+
+    /**
+     * Start deleting the orphaned partial copies.
+     */
+    public static synchronized void initialize() {
+        if (cleaner == null && MIN_SIZE > 0) {
+            cleaner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "resumable-copy-cleanup");
+                thread.setDaemon(true);
+                return thread;
+            });
+            cleaner.scheduleWithFixedDelay(ResumableCopy::cleanUp, 0L, CLEANUP_MINUTES, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * EXT_LOCAL_FILE_SYSTEM_RESUME_DIR, else a folder of the OpenRefine workspace, which outlives the import
+     * folder emptied on every start.
+     */
+    private static File getDir() {
+        if (CONFIGURED_DIR != null) {
+            return new File(CONFIGURED_DIR);
+        }
+        if (ProjectManager.singleton instanceof FileProjectManager) {
+            return new File(((FileProjectManager) ProjectManager.singleton).getWorkspaceDir(), "local-file-system-partial");
+        }
+        return new File(System.getProperty("java.io.tmpdir"), "local-file-system-partial");
+    }
+
+    public static boolean isResumable(File source) {
+        return MIN_SIZE > 0 && source.length() >= MIN_SIZE;
+    }
+
+    /**
+     * Copy {@code source} to {@code target}, going on from an earlier partial copy of the same source. The partial
+     * copy is kept when the copy fails or is canceled.
+     *
+     * @param bandwidth cap of the source root, may be null
+     * @return the bytes copied, the resumed ones included, or -1 when another import is copying the same source,
+     * or its partial copy is being cleaned up, and nothing was done
+     */
+    static long copy(File source, File target, WorkspaceRoot.Bandwidth bandwidth,
+                     LocalImportingUtilities.SavingUpdate update) throws IOException {
+        long size = source.length();
+        long lastModified = source.lastModified();
+        String key = key(source, size, lastModified);
+        synchronized (active) {
+            if (!active.add(key)) {
+                return -1L;
+            }
+        }
+        try {
+            File copyDir = new File(getDir(), key);
+            File data = new File(copyDir, DATA_FILE);
+            File chunks = new File(copyDir, CHUNKS_FILE);
+            if (!new File(copyDir, SOURCE_FILE).isFile()) {
+                if (copyDir.exists()) {
+                    LocalFileSystemFiles.deleteRecursively(copyDir.toPath());
+                }
+                Files.createDirectories(copyDir.toPath());
+                writeSource(copyDir, source, size, lastModified);
+            }
+
+            long position = verify(data, chunks);
+            if (position > 0) {
+                logger.info("Resuming the copy of " + source + " at " + position + " of " + size + " bytes");
+                if (update != null) {
+                    update.retrieved(position);
+                }
+            }
+
+            try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(data.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 DataOutputStream checkpoint = new DataOutputStream(new FileOutputStream(chunks, true))) {
+                byte[] bytes = new byte[BUFFER_SIZE];
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                CRC32 crc = new CRC32();
+                out.truncate(position);
+                while (position < size) {
+                    if (update != null && update.isCanceled()) {
+                        throw new InterruptedIOException("Import of " + source.getName() + " canceled");
+                    }
+                    long chunkEnd = Math.min(size, position + CHUNK_SIZE);
+                    crc.reset();
+                    while (position < chunkEnd) {
+                        buffer.clear();
+                        buffer.limit((int) Math.min(BUFFER_SIZE, chunkEnd - position));
+                        if (bandwidth != null) {
+                            bandwidth.acquire(buffer.remaining());
+                        }
+                        int count = in.read(buffer, position);
+                        if (count < 0) {
+                            throw new EOFException(source + " got shorter while it was copied");
+                        }
+                        crc.update(bytes, 0, count);
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            out.write(buffer, position + buffer.position());
+                        }
+                        position += count;
+                        if (update != null) {
+                            update.retrieved(count);
+                        }
+                    }
+                    // the data is checked again on resume, so it doesn't need to be forced to disk first
+                    checkpoint.writeLong(crc.getValue());
+                    checkpoint.flush();
+                }
+            }
+
+            try {
+                Files.move(data.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(data.toPath(), target.toPath());
+            }
+            LocalFileSystemFiles.deleteRecursively(copyDir.toPath());
+            return position;
+        } finally {
+            synchronized (active) {
+                active.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Check the chunks of {@code data} listed in {@code chunks} and drop the checksums after the first one that
+     * doesn't match.
+     *
+     * @return the bytes that can be kept
+     */
+    private static long verify(File data, File chunks) throws IOException {
+        if (!data.isFile() || !chunks.isFile()) {
+            Files.deleteIfExists(chunks.toPath());
+            return 0L;
+        }
+        long dataSize = data.length();
+        // a checksum cut short by a crash is ignored
+        long checksums = chunks.length() / 8;
+        long verified = 0L;
+        long kept = 0L;
+        byte[] bytes = new byte[BUFFER_SIZE];
+        CRC32 crc = new CRC32();
+        try (DataInputStream expected = new DataInputStream(new BufferedInputStream(new FileInputStream(chunks)));
+             InputStream is = new FileInputStream(data)) {
+            for (long i = 0; i < checksums; i++) {
+                long chunkEnd = Math.min(dataSize, (i + 1) * CHUNK_SIZE);
+                if (chunkEnd - i * CHUNK_SIZE <= 0) {
+                    break;
+                }
+                crc.reset();
+                long position = i * CHUNK_SIZE;
+                while (position < chunkEnd) {
+                    int count = is.read(bytes, 0, (int) Math.min(bytes.length, chunkEnd - position));
+                    if (count < 0) {
+                        break;
+                    }
+                    crc.update(bytes, 0, count);
+                    position += count;
+                }
+                if (position != chunkEnd || crc.getValue() != expected.readLong()) {
+                    break;
+                }
+                verified = chunkEnd;
+                kept++;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(chunks.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(kept * 8);
+        }
+        return verified;
+    }
+
+    private static void writeSource(File copyDir, File source, long size, long lastModified) throws IOException {
+        ObjectNode node = ParsingUtilities.mapper.createObjectNode();
+        JSONUtilities.safePut(node, "path", source.getAbsolutePath());
+        JSONUtilities.safePut(node, "size", size);
+        JSONUtilities.safePut(node, "lastModified", lastModified);
+        JSONUtilities.safePut(node, "chunkSize", CHUNK_SIZE);
+        ParsingUtilities.mapper.writeValue(new File(copyDir, SOURCE_FILE), node);
+    }
+
+    /**
+     * Delete the partial copies of sources that changed or are gone, those left alone for too long, and those
+     * made with another chunk size.
+     */
+    static void cleanUp() {
+        File[] children = getDir().listFiles();
+        if (children == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (File copyDir : children) {
+            // claimed like a copy, so a copy of the same source can't start before the folder is gone
+            synchronized (active) {
+                if (!active.add(copyDir.getName())) {
+                    continue;
+                }
+            }
+            try {
+                cleanUp(copyDir, now);
+            } finally {
+                synchronized (active) {
+                    active.remove(copyDir.getName());
+                }
+            }
+        }
+    }
+
+    private static void cleanUp(File copyDir, long now) {
+        File data = new File(copyDir, DATA_FILE);
+        long touched = Math.max(copyDir.lastModified(), data.lastModified());
+        boolean orphaned = now - touched > KEEP_MILLIS;
+        if (!orphaned) {
+            try {
+                ObjectNode node = ParsingUtilities.mapper.readValue(new File(copyDir, SOURCE_FILE), ObjectNode.class);
+                File source = new File(JSONUtilities.getString(node, "path", ""));
+                orphaned = source.length() != node.path("size").asLong(-1L)
+                        || source.lastModified() != node.path("lastModified").asLong(-1L)
+                        || node.path("chunkSize").asLong(-1L) != CHUNK_SIZE;
+            } catch (IOException | RuntimeException e) {
+                orphaned = true;
+            }
+        }
+        if (orphaned) {
+            logger.info("Deleting the partial copy " + copyDir);
+            LocalFileSystemFiles.deleteRecursively(copyDir.toPath());
+        }
+    }
+
+    private static String key(File source, long size, long lastModified) {
+        String identity = source.getAbsolutePath() + "|" + size + "|" + lastModified;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(identity.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.refinepro;
+
+import com.google.refine.ProjectManager;
+import com.google.refine.ProjectMetadata;
+import com.google.refine.history.Change;
+import com.google.refine.model.Project;
+import com.google.refine.model.Row;
+import com.google.refine.util.Pool;
+
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Rows appended at the end of a project from the new tail of its source file. The append state of the project
+ * moves with the change, so undoing an append also rewinds the offset and the next append reads the rows again.
+ */
+public class RowAppendChange implements Change {
+
+    private final List<Row> rows;
+    private final String oldState;
+    private final String newState;
+
+    public RowAppendChange(List<Row> rows, String oldState, String newState) {
+        this.rows = rows;
+        this.oldState = oldState;
+        this.newState = newState;
+    }
+
+    @Override
+    public void apply(Project project) {
+        synchronized (project) {
+            project.rows.addAll(rows);
+
+            project.columnModel.clearPrecomputes();
+            ProjectManager.singleton.getInterProjectModel().flushJoinsInvolvingProject(project.id);
+
+            project.update();
+            setState(project, newState);
+        }
+    }
+
+    @Override
+    public void revert(Project project) {
+        synchronized (project) {
+            int size = project.rows.size();
+            project.rows.subList(size - rows.size(), size).clear();
+
+            project.columnModel.clearPrecomputes();
+            ProjectManager.singleton.getInterProjectModel().flushJoinsInvolvingProject(project.id);
+
+            project.update();
+            setState(project, oldState);
+        }
+    }
+
+    private static void setState(Project project, String state) {
+        ProjectMetadata metadata = ProjectManager.singleton.getProjectMetadata(project.id);
+        if (metadata != null) {
+            metadata.setCustomMetadata(LocalFileAppend.METADATA_KEY, state);
+        }
+    }
+
+    @Override
+    public void save(Writer writer, Properties options) throws IOException {
+        writer.write("oldState="); writer.write(oldState == null ? "" : oldState); writer.write('\n');
+        writer.write("newState="); writer.write(newState == null ? "" : newState); writer.write('\n');
+        writer.write("rowCount="); writer.write(Integer.toString(rows.size())); writer.write('\n');
+        for (Row row : rows) {
+            row.save(writer, options);
+            writer.write('\n');
+        }
+        writer.write("/ec/\n"); // end of change marker
+    }
+
+    static public Change load(LineNumberReader reader, Pool pool) throws Exception {
+        String oldState = null;
+        String newState = null;
+        List<Row> rows = new ArrayList<>();
+
+        String line;
+        while ((line = reader.readLine()) != null && !"/ec/".equals(line)) {
+            int equal = line.indexOf('=');
+            String field = line.substring(0, equal);
+            String value = line.substring(equal + 1);
+
+            if ("oldState".equals(field)) {
+                oldState = value.isEmpty() ? null : value;
+            } else if ("newState".equals(field)) {
+                newState = value.isEmpty() ? null : value;
+            } else if ("rowCount".equals(field)) {
+                int count = Integer.parseInt(value);
+                for (int i = 0; i < count; i++) {
+                    line = reader.readLine();
+                    if (line != null) {
+                        rows.add(Row.load(line, pool));
+                    }
+                }
+            }
+        }
+
+        return new RowAppendChange(rows, oldState, newState);
+    }
+}
@@ -0,0 +1,145 @@
+package com.refinepro;
+
+import com.google.refine.browsing.*;
+import com.google.refine.browsing.facets.Facet;
+import com.google.refine.model.Project;
+import com.google.refine.model.Record;
+import com.google.refine.model.Row;
+
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Engine that counts the rows handed to the visitors, used to report the progress of an exporter.
+ * The visit stops early once {@code stop} is true. Given the {@code indexes} of rows, or of records in record mode,
+ * it visits those instead of filtering the project again, to export one shard of a partitioned export. Given a
+ * {@link WorkspaceExportFeed} it visits the indexes handed by the single pass of an export to several formats.
+ */
+public class RowCountingEngine extends Engine {
+
+    private final AtomicLong rowCount;
+    private final BooleanSupplier stop;
+    private final Supplier<PrimitiveIterator.OfInt> indexes;
+
+    public RowCountingEngine(Project project, AtomicLong rowCount) {
+        this(project, rowCount, () -> false);
+    }
+
+    public RowCountingEngine(Project project, AtomicLong rowCount, BooleanSupplier stop) {
+        this(project, rowCount, stop, (int[]) null);
+    }
+
+    /**
+     * @param indexes ascending row indexes, or record indexes in record mode, already filtered; null to filter
+     */
+    public RowCountingEngine(Project project, AtomicLong rowCount, BooleanSupplier stop, int[] indexes) {
+        this(project, rowCount, stop, indexes == null ? null : () -> Arrays.stream(indexes).iterator());
+    }
+
+    /**
+     * @param feed the indexes, read once
+     */
+    public RowCountingEngine(Project project, AtomicLong rowCount, BooleanSupplier stop, WorkspaceExportFeed feed) {
+        this(project, rowCount, stop, () -> feed);
+    }
+
+    private RowCountingEngine(Project project, AtomicLong rowCount, BooleanSupplier stop,
+                              Supplier<PrimitiveIterator.OfInt> indexes) {
+        super(project);
+        this.rowCount = rowCount;
+        this.stop = stop;
+        this.indexes = indexes;
+    }
+
+    @Override
+    public FilteredRows getFilteredRows(Facet except) {
+        if (getMode() == Mode.RecordBased) {
+            // built on getFilteredRecords, which already counts
+            return super.getFilteredRows(except);
+        }
+        final FilteredRows filteredRows = indexes == null ? super.getFilteredRows(except) : (project, visitor) -> {
+            try {
+                visitor.start(project);
+                PrimitiveIterator.OfInt rowIndexes = indexes.get();
+                while (rowIndexes.hasNext()) {
+                    int rowIndex = rowIndexes.nextInt();
+                    if (visitor.visit(project, rowIndex, project.rows.get(rowIndex))) {
+                        break;
+                    }
+                }
+            } finally {
+                visitor.end(project);
+            }
+        };
+        return new FilteredRows() {
+            @Override
+            public void accept(Project project, final RowVisitor visitor) {
+                filteredRows.accept(project, new RowVisitor() {
+                    @Override
+                    public void start(Project project) {
+                        visitor.start(project);
+                    }
+
+                    @Override
+                    public boolean visit(Project project, int rowIndex, Row row) {
+                        if (stop.getAsBoolean()) {
+                            return true;
+                        }
+                        rowCount.incrementAndGet();
+                        return visitor.visit(project, rowIndex, row);
+                    }
+
+                    @Override
+                    public void end(Project project) {
+                        visitor.end(project);
+                    }
+                });
+            }
+        };
+    }
+
+    @Override
+    public FilteredRecords getFilteredRecords(Facet except) {
+        final FilteredRecords filteredRecords = indexes == null ? super.getFilteredRecords(except) : (project, visitor) -> {
+            try {
+                visitor.start(project);
+                PrimitiveIterator.OfInt recordIndexes = indexes.get();
+                while (recordIndexes.hasNext()) {
+                    if (visitor.visit(project, project.recordModel.getRecord(recordIndexes.nextInt()))) {
+                        break;
+                    }
+                }
+            } finally {
+                visitor.end(project);
+            }
+        };
+        return new FilteredRecords() {
+            @Override
+            public void accept(Project project, final RecordVisitor visitor) {
+                filteredRecords.accept(project, new RecordVisitor() {
+                    @Override
+                    public void start(Project project) {
+                        visitor.start(project);
+                    }
+
+                    @Override
+                    public boolean visit(Project project, Record record) {
+                        if (stop.getAsBoolean()) {
+                            return true;
+                        }
+                        rowCount.addAndGet(record.toRowIndex - record.fromRowIndex);
+                        return visitor.visit(project, record);
+                    }
+
+                    @Override
+                    public void end(Project project) {
+                        visitor.end(project);
+                    }
+                });
+            }
+        };
+    }
+}
@@ -0,0 +1,199 @@
+package com.refinepro;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.refine.util.JSONUtilities;
+import com.google.refine.util.ParsingUtilities;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram, error count and bytes moved of one import or export stage.
+ * The histogram has fixed buckets so recording is a few atomic increments and never allocates.
+ */
+public class StageMetrics implements StageMetricsMXBean {
+
+    /**
+     * Upper bounds of the latency buckets in milliseconds, the last bucket takes everything slower.
+     */
+    static final long[] BUCKET_BOUNDS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000};
+
+    private final String name;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+
+    StageMetrics(String name) {
+        this.name = name;
+    }
+
+    void started() {
+        active.incrementAndGet();
+    }
+
+    void stopped(long nanos, boolean success, long read, long written) {
+        active.decrementAndGet();
+        record(nanos, success, read, written);
+    }
+
+    void discarded() {
+        active.decrementAndGet();
+    }
+
+    void record(long nanos, boolean success, long read, long written) {
+        count.incrementAndGet();
+        if (!success) {
+            errors.incrementAndGet();
+        }
+        totalNanos.addAndGet(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+        bytesRead.addAndGet(read);
+        bytesWritten.addAndGet(written);
+        buckets.incrementAndGet(bucketOf(TimeUnit.NANOSECONDS.toMillis(nanos)));
+    }
+
+    private static int bucketOf(long millis) {
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            if (millis <= BUCKET_BOUNDS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_BOUNDS.length;
+    }
+
+    /**
+     * Upper bound of the bucket holding the {@code quantile}, or the max when it falls in the last bucket.
+     */
+    private long quantileMillis(double quantile) {
+        long total = 0L;
+        for (int i = 0; i < buckets.length(); i++) {
+            total += buckets.get(i);
+        }
+        if (total == 0L) {
+            return 0L;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0L;
+        for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return BUCKET_BOUNDS[i];
+            }
+        }
+        return getMaxMillis();
+    }
+
+    private static double perSecond(long bytes, long nanos) {
+        return nanos == 0L ? 0.0 : bytes * 1e9 / nanos;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.get();
+    }
+
+    @Override
+    public int getActive() {
+        return active.get();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long n = count.get();
+        return n == 0L ? 0.0 : totalNanos.get() / 1e6 / n;
+    }
+
+    @Override
+    public long getMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+    }
+
+    @Override
+    public long getP50Millis() {
+        return quantileMillis(0.50);
+    }
+
+    @Override
+    public long getP95Millis() {
+        return quantileMillis(0.95);
+    }
+
+    @Override
+    public long getP99Millis() {
+        return quantileMillis(0.99);
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public double getReadBytesPerSecond() {
+        return perSecond(bytesRead.get(), totalNanos.get());
+    }
+
+    @Override
+    public double getWriteBytesPerSecond() {
+        return perSecond(bytesWritten.get(), totalNanos.get());
+    }
+
+    @Override
+    public void reset() {
+        count.set(0L);
+        errors.set(0L);
+        totalNanos.set(0L);
+        maxNanos.set(0L);
+        bytesRead.set(0L);
+        bytesWritten.set(0L);
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0L);
+        }
+    }
+
+    public ObjectNode toJson() {
+        ObjectNode node = ParsingUtilities.mapper.createObjectNode();
+        JSONUtilities.safePut(node, "count", getCount());
+        JSONUtilities.safePut(node, "errors", getErrors());
+        JSONUtilities.safePut(node, "active", (long) getActive());
+        node.put("meanMillis", getMeanMillis());
+        JSONUtilities.safePut(node, "maxMillis", getMaxMillis());
+        JSONUtilities.safePut(node, "p50Millis", getP50Millis());
+        JSONUtilities.safePut(node, "p95Millis", getP95Millis());
+        JSONUtilities.safePut(node, "p99Millis", getP99Millis());
+        JSONUtilities.safePut(node, "bytesRead", getBytesRead());
+        JSONUtilities.safePut(node, "bytesWritten", getBytesWritten());
+        node.put("readBytesPerSecond", getReadBytesPerSecond());
+        node.put("writeBytesPerSecond", getWriteBytesPerSecond());
+
+        ObjectNode histogram = ParsingUtilities.mapper.createObjectNode();
+        for (int i = 0; i < buckets.length(); i++) {
+            String bound = i < BUCKET_BOUNDS.length ? String.valueOf(BUCKET_BOUNDS[i]) : "+Inf";
+            JSONUtilities.safePut(histogram, bound, buckets.get(i));
+        }
+        JSONUtilities.safePut(node, "histogram", histogram);
+        return node;
+    }
+}
@@ -0,0 +1,35 @@
+package com.refinepro;
+
+/**
+ * JMX view of one measured stage, registered as {@code com.refinepro.localfilesystem:type=Stage,name=<stage>}.
+ */
+public interface StageMetricsMXBean {
+
+    String getName();
+
+    long getCount();
+
+    long getErrors();
+
+    int getActive();
+
+    double getMeanMillis();
+
+    long getMaxMillis();
+
+    long getP50Millis();
+
+    long getP95Millis();
+
+    long getP99Millis();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    double getReadBytesPerSecond();
+
+    double getWriteBytesPerSecond();
+
+    void reset();
+}
@@ -0,0 +1,153 @@
+package com.refinepro;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State of a file dropped into the watched workspace folder, from its first sighting to its project,
+ * polled through the watch-status command.
+ */
+public class WorkspaceAutoImport {
+
+    public static final String STATE_WAITING = "waiting";
+    public static final String STATE_QUEUED = "queued";
+    public static final String STATE_RUNNING = "running";
+    public static final String STATE_DONE = "done";
+    public static final String STATE_ERROR = "error";
+
+    // finished imports are kept this long for the pollers
+    private static final long RETENTION_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static final AtomicLong lastId = new AtomicLong(System.currentTimeMillis());
+    private static final Map<Long, WorkspaceAutoImport> imports = new ConcurrentHashMap<>();
+
+    @JsonProperty("id")
+    public final long id;
+    @JsonProperty("path")
+    public final String path;
+    @JsonProperty("pattern")
+    public final String pattern;
+
+    private volatile String state = STATE_WAITING;
+    private volatile String error;
+    private volatile long projectID;
+    private volatile long size;
+    private final long seenTime = System.currentTimeMillis();
+    private volatile long queuedTime;
+    private volatile long startTime;
+    private volatile long endTime;
+
+    private WorkspaceAutoImport(long id, String path, String pattern) {
+        this.id = id;
+        this.path = path;
+        this.pattern = pattern;
+    }
+
+    public static WorkspaceAutoImport create(String path, String pattern) {
+        purgeFinishedImports();
+        WorkspaceAutoImport autoImport = new WorkspaceAutoImport(lastId.incrementAndGet(), path, pattern);
+        imports.put(autoImport.id, autoImport);
+        return autoImport;
+    }
+
+    public static WorkspaceAutoImport get(long id) {
+        return imports.get(id);
+    }
+
+    public static List<WorkspaceAutoImport> getAll() {
+        return new ArrayList<>(imports.values());
+    }
+
+    /**
+     * Forget a file that disappeared before it was imported.
+     */
+    public static void remove(WorkspaceAutoImport autoImport) {
+        imports.remove(autoImport.id);
+    }
+
+    private static void purgeFinishedImports() {
+        long now = System.currentTimeMillis();
+        imports.values().removeIf(autoImport -> autoImport.isFinished() && now - autoImport.endTime > RETENTION_MILLIS);
+    }
+
+    @JsonProperty("state")
+    public String getState() {
+        return state;
+    }
+
+    @JsonProperty("error")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getError() {
+        return error;
+    }
+
+    @JsonProperty("projectID")
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    public long getProjectID() {
+        return projectID;
+    }
+
+    @JsonProperty("size")
+    public long getSize() {
+        return size;
+    }
+
+    @JsonProperty("seenTime")
+    public long getSeenTime() {
+        return seenTime;
+    }
+
+    @JsonProperty("elapsedMillis")
+    public long getElapsedMillis() {
+        if (startTime == 0L) {
+            return 0L;
+        }
+        return (endTime == 0L ? System.currentTimeMillis() : endTime) - startTime;
+    }
+
+    @JsonProperty("waitedMillis")
+    public long getWaitedMillis() {
+        if (queuedTime == 0L) {
+            return 0L;
+        }
+        return (startTime == 0L ? System.currentTimeMillis() : startTime) - queuedTime;
+    }
+
+    @JsonIgnore
+    public boolean isFinished() {
+        return STATE_DONE.equals(state) || STATE_ERROR.equals(state);
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public void queue() {
+        queuedTime = System.currentTimeMillis();
+        state = STATE_QUEUED;
+    }
+
+    public void start() {
+        startTime = System.currentTimeMillis();
+        state = STATE_RUNNING;
+    }
+
+    public void finish(long projectID) {
+        this.projectID = projectID;
+        endTime = System.currentTimeMillis();
+        state = STATE_DONE;
+    }
+
+    public void fail(Exception e) {
+        endTime = System.currentTimeMillis();
+        error = e.getMessage() == null ? e.toString() : e.getMessage();
+        state = STATE_ERROR;
+    }
+}
@@ -0,0 +1,206 @@
+package com.refinepro;
+
+import com.google.refine.browsing.Engine;
+import com.google.refine.browsing.RecordVisitor;
+import com.google.refine.browsing.RowVisitor;
+import com.google.refine.model.Project;
+import com.google.refine.model.Record;
+import com.google.refine.model.Row;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Row indexes, or record indexes in record mode, handed by the single pass of an export to several formats to the
+ * exporter of one format, which reads them through a {@link RowCountingEngine}. They go through a bounded queue in
+ * batches, so the pass runs at most a few batches ahead of the slowest exporter. An exporter reads its feed once.
+ */
+public class WorkspaceExportFeed implements PrimitiveIterator.OfInt {
+
+    private static final int BATCH_SIZE = 1024;
+
+    private static final int QUEUED_BATCHES = LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_EXPORT_FEED_BATCHES", 16);
+
+    private static final int[] END = new int[0];
+
+    private final BlockingQueue<int[]> queue = new ArrayBlockingQueue<>(Math.max(1, QUEUED_BATCHES));
+
+    // the exporter stopped reading, nothing more is queued for it
+    private volatile boolean closed;
+    private volatile String failure;
+
+    // written by the pass
+    private int[] batch = new int[BATCH_SIZE];
+    private int batchSize;
+
+    // read by the exporter
+    private int[] current = new int[0];
+    private int position;
+
+    /**
+     * Visit the rows, or records, selected by {@code engine} once and hand each of them to every feed. The feeds
+     * are ended, or failed, when the visit is over.
+     */
+    public static void feed(Project project, Engine engine, final List<WorkspaceExportFeed> feeds,
+                            final BooleanSupplier stop) throws InterruptedException {
+        final boolean[] interrupted = {false};
+        try {
+            if (engine.getMode() == Engine.Mode.RecordBased) {
+                engine.getFilteredRecords().accept(project, new RecordVisitor() {
+                    @Override
+                    public void start(Project project) {
+                    }
+
+                    @Override
+                    public boolean visit(Project project, Record record) {
+                        return add(feeds, record.recordIndex, stop, interrupted);
+                    }
+
+                    @Override
+                    public void end(Project project) {
+                    }
+                });
+            } else {
+                engine.getAllFilteredRows().accept(project, new RowVisitor() {
+                    @Override
+                    public void start(Project project) {
+                    }
+
+                    @Override
+                    public boolean visit(Project project, int rowIndex, Row row) {
+                        return add(feeds, rowIndex, stop, interrupted);
+                    }
+
+                    @Override
+                    public void end(Project project) {
+                    }
+                });
+            }
+            if (interrupted[0]) {
+                throw new InterruptedException();
+            }
+            for (WorkspaceExportFeed feed : feeds) {
+                feed.end();
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            for (WorkspaceExportFeed feed : feeds) {
+                feed.fail(e instanceof InterruptedException ? "Export interrupted" : String.valueOf(e.getMessage()));
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return true to stop the visit
+     */
+    private static boolean add(List<WorkspaceExportFeed> feeds, int index, BooleanSupplier stop, boolean[] interrupted) {
+        if (stop.getAsBoolean()) {
+            return true;
+        }
+        boolean open = false;
+        try {
+            for (WorkspaceExportFeed feed : feeds) {
+                open |= feed.add(index);
+            }
+        } catch (InterruptedException e) {
+            interrupted[0] = true;
+            return true;
+        }
+        return !open;
+    }
+
+    /**
+     * @return false when the exporter stopped reading
+     */
+    private boolean add(int index) throws InterruptedException {
+        if (closed) {
+            return false;
+        }
+        batch[batchSize++] = index;
+        if (batchSize == batch.length) {
+            put(batch);
+            batch = new int[BATCH_SIZE];
+            batchSize = 0;
+        }
+        return true;
+    }
+
+    private void end() throws InterruptedException {
+        if (batchSize > 0) {
+            int[] last = new int[batchSize];
+            System.arraycopy(batch, 0, last, 0, batchSize);
+            put(last);
+            batchSize = 0;
+        }
+        put(END);
+    }
+
+    private void fail(String message) {
+        failure = message;
+        // the exporter has to learn about it even when the pass itself was interrupted
+        boolean interrupted = Thread.interrupted();
+        try {
+            put(END);
+        } catch (InterruptedException e) {
+            interrupted = true;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void put(int[] indexes) throws InterruptedException {
+        // close() empties the queue, so a put waiting on a closed feed returns
+        if (!closed) {
+            queue.put(indexes);
+        }
+    }
+
+    /**
+     * Called by the exporter side once it is done, read or not, so the pass never waits for it.
+     */
+    public void close() {
+        closed = true;
+        queue.clear();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (position < current.length) {
+            return true;
+        }
+        if (current == END) {
+            return false;
+        }
+        try {
+            current = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Export interrupted"));
+        }
+        position = 0;
+        if (current == END) {
+            if (failure != null) {
+                throw new UncheckedIOException(new IOException(failure));
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int nextInt() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current[position++];
+    }
+}
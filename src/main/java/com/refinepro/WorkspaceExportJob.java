@@ -0,0 +1,252 @@
+package com.refinepro;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State of a workspace export running in the background, polled through the workspace-export-status command.
+ */
+public class WorkspaceExportJob {
+
+    /**
+     * Suffix of the file an export is written to before it is renamed to its final name.
+     */
+    public static final String PARTIAL_SUFFIX = ".export-part";
+
+    public static final String STATE_QUEUED = "queued";
+    public static final String STATE_RUNNING = "running";
+    public static final String STATE_DONE = "done";
+    public static final String STATE_ERROR = "error";
+
+    // finished jobs are kept this long for the pollers
+    private static final long RETENTION_MILLIS = 60L * 60 * 1000;
+
+    private static final AtomicLong lastId = new AtomicLong(System.currentTimeMillis());
+    private static final Map<Long, WorkspaceExportJob> jobs = new ConcurrentHashMap<>();
+
+    @JsonProperty("id")
+    public final long id;
+    @JsonProperty("projectID")
+    public final long projectID;
+    @JsonProperty("fileName")
+    public final String fileName;
+
+    /**
+     * One of the files of an export to several formats.
+     */
+    public static class FormatExport {
+        @JsonProperty("format")
+        public final String format;
+        @JsonProperty("fileName")
+        public final String fileName;
+
+        private final AtomicLong rowsWritten = new AtomicLong();
+        private volatile String state = STATE_QUEUED;
+        private volatile String error;
+        private volatile long bytes;
+        private volatile long startTime;
+        private volatile long endTime;
+
+        public FormatExport(String format, String fileName) {
+            this.format = format;
+            this.fileName = fileName;
+        }
+
+        @JsonIgnore
+        public AtomicLong getRowCounter() {
+            return rowsWritten;
+        }
+
+        @JsonProperty("rowsWritten")
+        public long getRowsWritten() {
+            return rowsWritten.get();
+        }
+
+        @JsonProperty("state")
+        public String getState() {
+            return state;
+        }
+
+        @JsonProperty("error")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public String getError() {
+            return error;
+        }
+
+        @JsonProperty("bytes")
+        public long getBytes() {
+            return bytes;
+        }
+
+        @JsonProperty("elapsedMillis")
+        public long getElapsedMillis() {
+            if (startTime == 0L) {
+                return 0L;
+            }
+            return (endTime == 0L ? System.currentTimeMillis() : endTime) - startTime;
+        }
+
+        public void start() {
+            startTime = System.currentTimeMillis();
+            state = STATE_RUNNING;
+        }
+
+        public void finish(long bytes) {
+            this.bytes = bytes;
+            endTime = System.currentTimeMillis();
+            state = STATE_DONE;
+        }
+
+        public void fail(Exception e) {
+            endTime = System.currentTimeMillis();
+            error = e.getMessage() == null ? e.toString() : e.getMessage();
+            state = STATE_ERROR;
+        }
+    }
+
+    private final AtomicLong rowsWritten = new AtomicLong();
+    private volatile List<FormatExport> formats;
+    private volatile String state = STATE_QUEUED;
+    private volatile String error;
+    private volatile boolean canceled;
+    private volatile boolean reused;
+    private final long queuedTime = System.currentTimeMillis();
+    private volatile long startTime;
+    private volatile long endTime;
+
+    private WorkspaceExportJob(long id, long projectID, String fileName) {
+        this.id = id;
+        this.projectID = projectID;
+        this.fileName = fileName;
+    }
+
+    public static WorkspaceExportJob create(long projectID, String fileName) {
+        purgeFinishedJobs();
+        WorkspaceExportJob job = new WorkspaceExportJob(lastId.incrementAndGet(), projectID, fileName);
+        jobs.put(job.id, job);
+        return job;
+    }
+
+    public static WorkspaceExportJob get(long id) {
+        return jobs.get(id);
+    }
+
+    public static List<WorkspaceExportJob> getAll() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    private static void purgeFinishedJobs() {
+        long now = System.currentTimeMillis();
+        jobs.values().removeIf(job -> job.isFinished() && now - job.endTime > RETENTION_MILLIS);
+    }
+
+    @JsonIgnore
+    public AtomicLong getRowCounter() {
+        return rowsWritten;
+    }
+
+    /**
+     * Rows written, by every format of an export to several formats.
+     */
+    @JsonProperty("rowsWritten")
+    public long getRowsWritten() {
+        List<FormatExport> formats = this.formats;
+        if (formats == null) {
+            return rowsWritten.get();
+        }
+        long rows = Long.MAX_VALUE;
+        for (FormatExport format : formats) {
+            rows = Math.min(rows, format.getRowsWritten());
+        }
+        return formats.isEmpty() ? 0L : rows;
+    }
+
+    @JsonProperty("formats")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public List<FormatExport> getFormats() {
+        return formats;
+    }
+
+    public void setFormats(List<FormatExport> formats) {
+        this.formats = formats;
+    }
+
+    @JsonProperty("state")
+    public String getState() {
+        return state;
+    }
+
+    @JsonProperty("error")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getError() {
+        return error;
+    }
+
+    @JsonProperty("elapsedMillis")
+    public long getElapsedMillis() {
+        if (startTime == 0L) {
+            return 0L;
+        }
+        return (endTime == 0L ? System.currentTimeMillis() : endTime) - startTime;
+    }
+
+    /**
+     * Whether the files of an earlier export of the same project state, facets and options were kept.
+     */
+    @JsonProperty("reused")
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    public boolean isReused() {
+        return reused;
+    }
+
+    @JsonProperty("waitedMillis")
+    public long getWaitedMillis() {
+        return (startTime == 0L ? System.currentTimeMillis() : startTime) - queuedTime;
+    }
+
+    @JsonIgnore
+    public boolean isFinished() {
+        return STATE_DONE.equals(state) || STATE_ERROR.equals(state);
+    }
+
+    @JsonIgnore
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    /**
+     * Ask the running export to stop, it fails once the exporter returns.
+     */
+    public void cancel() {
+        canceled = true;
+    }
+
+    public void start() {
+        startTime = System.currentTimeMillis();
+        state = STATE_RUNNING;
+    }
+
+    public void finish() {
+        endTime = System.currentTimeMillis();
+        state = STATE_DONE;
+    }
+
+    public void reuse() {
+        startTime = System.currentTimeMillis();
+        reused = true;
+        finish();
+    }
+
+    public void fail(Exception e) {
+        endTime = System.currentTimeMillis();
+        error = e.getMessage() == null ? e.toString() : e.getMessage();
+        state = STATE_ERROR;
+    }
+}
@@ -0,0 +1,101 @@
+package com.refinepro;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.refine.history.HistoryEntry;
+import com.google.refine.model.Project;
+import com.google.refine.process.Process;
+import com.google.refine.process.ProcessManager;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A workspace export queued on the process manager of its project. Operations on that project wait for the
+ * export the way they wait for any long running operation, so the rows are not changed while they are written,
+ * and the project is not unloaded by the autosave. Other projects and the autosave are not held up, unlike with
+ * the global busy flag of the project manager.
+ */
+public class WorkspaceExportProcess extends Process {
+
+    @JsonProperty("description")
+    private final String description;
+
+    private final WorkspaceExportJob job;
+    private final Project project;
+    private final Executor executor;
+    private final Runnable export;
+
+    private volatile boolean started;
+    private volatile boolean done;
+
+    /**
+     * @param export writes the export, run on {@code executor} once the project has no operation before it
+     */
+    public WorkspaceExportProcess(WorkspaceExportJob job, Project project, Executor executor, Runnable export) {
+        this.description = "Export to workspace file " + job.fileName;
+        this.job = job;
+        this.project = project;
+        this.executor = executor;
+        this.export = export;
+    }
+
+    @Override
+    public boolean isImmediate() {
+        return false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return started && !done;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done;
+    }
+
+    @JsonProperty("status")
+    public String getStatus() {
+        return done ? "done" : (started ? "running" : "pending");
+    }
+
+    @JsonProperty("progress")
+    public int getProgress() {
+        int rows = project.rows.size();
+        return rows == 0 ? 0 : (int) Math.min(100L, job.getRowsWritten() * 100L / rows);
+    }
+
+    @Override
+    public HistoryEntry performImmediate() {
+        throw new RuntimeException("Not an immediate process");
+    }
+
+    @Override
+    public void startPerforming(final ProcessManager manager) {
+        if (started) {
+            return;
+        }
+        started = true;
+        try {
+            executor.execute(() -> {
+                try {
+                    export.run();
+                } finally {
+                    done = true;
+                    manager.onDoneProcess(this);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LocalFileSystemMetrics.record("export", 0L, false);
+            job.fail(new RejectedExecutionException("Too many exports in progress"));
+            done = true;
+            // runs the operations queued after the export
+            manager.onDoneProcess(this);
+        }
+    }
+
+    @Override
+    public void cancel() {
+        job.cancel();
+    }
+}
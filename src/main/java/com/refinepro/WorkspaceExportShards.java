@@ -0,0 +1,299 @@
+package com.refinepro;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.refine.browsing.*;
+import com.google.refine.model.Cell;
+import com.google.refine.model.Project;
+import com.google.refine.model.Record;
+import com.google.refine.model.Row;
+import com.google.refine.util.JSONUtilities;
+import com.google.refine.util.ParsingUtilities;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Partitioned workspace export: the filtered rows are split into shards of at most a number of rows or bytes,
+ * written in parallel to a folder with a manifest of the row count, size and SHA-256 of every shard. The shards
+ * are planned from an estimate of the exported size, a shard that comes out larger than the byte limit is split
+ * and written again.
+ */
+public class WorkspaceExportShards {
+
+    public static final String MANIFEST_SUFFIX = ".manifest.json";
+
+    /**
+     * Writes the rows of {@code engine} to {@code path}, passing the bytes written to the file through {@code digest}.
+     */
+    public interface ShardWriter {
+        void write(Engine engine, Path path, MessageDigest digest) throws IOException;
+    }
+
+    /**
+     * Rows, or records in record mode, of one shard.
+     */
+    static class Shard {
+        final int[] indexes;
+        // rows of each index, more than one for records
+        final int[] indexRows;
+        final long rows;
+
+        Shard(int[] indexes, int[] indexRows) {
+            this.indexes = indexes;
+            this.indexRows = indexRows;
+            long rows = 0L;
+            for (int r : indexRows) {
+                rows += r;
+            }
+            this.rows = rows;
+        }
+
+        Shard[] split() {
+            int half = indexes.length / 2;
+            return new Shard[]{
+                    new Shard(Arrays.copyOfRange(indexes, 0, half), Arrays.copyOfRange(indexRows, 0, half)),
+                    new Shard(Arrays.copyOfRange(indexes, half, indexes.length),
+                            Arrays.copyOfRange(indexRows, half, indexes.length))
+            };
+        }
+    }
+
+    private WorkspaceExportShards() {
+    }
+
+    /**
+     * Split the rows of {@code engine} in shards of at most {@code maxRows} rows and {@code maxBytes} bytes, 0 for
+     * no limit. The size of a row is estimated from its cell values, records are never split. There is always at
+     * least one shard, so an empty export still gets a file with its header.
+     */
+    static List<Shard> partition(Project project, Engine engine, final long maxRows, final long maxBytes) {
+        final List<Shard> shards = new ArrayList<>();
+        final ShardBuilder builder = new ShardBuilder(shards, maxRows, maxBytes);
+        if (engine.getMode() == Engine.Mode.RecordBased) {
+            engine.getFilteredRecords().accept(project, new RecordVisitor() {
+                @Override
+                public void start(Project project) {
+                }
+
+                @Override
+                public boolean visit(Project project, Record record) {
+                    long bytes = 0L;
+                    for (int r = record.fromRowIndex; r < record.toRowIndex; r++) {
+                        bytes += estimateSize(project.rows.get(r));
+                    }
+                    builder.add(record.recordIndex, record.toRowIndex - record.fromRowIndex, bytes);
+                    return false;
+                }
+
+                @Override
+                public void end(Project project) {
+                }
+            });
+        } else {
+            engine.getAllFilteredRows().accept(project, new RowVisitor() {
+                @Override
+                public void start(Project project) {
+                }
+
+                @Override
+                public boolean visit(Project project, int rowIndex, Row row) {
+                    builder.add(rowIndex, 1, estimateSize(row));
+                    return false;
+                }
+
+                @Override
+                public void end(Project project) {
+                }
+            });
+        }
+        builder.flush();
+        if (shards.isEmpty()) {
+            shards.add(new Shard(new int[0], new int[0]));
+        }
+        return shards;
+    }
+
+    private static class ShardBuilder {
+        private final List<Shard> shards;
+        private final long maxRows;
+        private final long maxBytes;
+        private int[] indexes = new int[1024];
+        private int[] indexRows = new int[1024];
+        private int count;
+        private long rows;
+        private long bytes;
+
+        ShardBuilder(List<Shard> shards, long maxRows, long maxBytes) {
+            this.shards = shards;
+            this.maxRows = maxRows;
+            this.maxBytes = maxBytes;
+        }
+
+        void add(int index, int rowCount, long indexBytes) {
+            // a shard takes at least one record, however large
+            if (count > 0 && ((maxRows > 0 && rows + rowCount > maxRows) || (maxBytes > 0 && bytes + indexBytes > maxBytes))) {
+                flush();
+            }
+            if (count == indexes.length) {
+                indexes = Arrays.copyOf(indexes, count * 2);
+                indexRows = Arrays.copyOf(indexRows, count * 2);
+            }
+            indexRows[count] = rowCount;
+            indexes[count++] = index;
+            rows += rowCount;
+            bytes += indexBytes;
+        }
+
+        void flush() {
+            if (count > 0) {
+                shards.add(new Shard(Arrays.copyOf(indexes, count), Arrays.copyOf(indexRows, count)));
+            }
+            count = 0;
+            rows = 0L;
+            bytes = 0L;
+        }
+    }
+
+    /**
+     * Size of the row once exported as text: its values plus a separator per cell and a line end. Quoting,
+     * multi-byte characters and the markup of other formats are not counted, the written size is checked after.
+     */
+    private static long estimateSize(Row row) {
+        long size = 1L;
+        for (Cell cell : row.cells) {
+            size += 1;
+            if (cell != null && cell.value != null) {
+                size += cell.value.toString().length();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Write every shard to {@code folder}, as {@code <prefix>.<shard number><suffix>}, on {@code concurrency} threads,
+     * then the manifest.
+     *
+     * @param engineConfig filter of the export, each shard gets its own engine
+     * @return the bytes written
+     */
+    public static long write(Project project, EngineConfig engineConfig, WorkspaceExportJob job, long maxRows,
+                             long maxBytes, int concurrency, Path folder, String prefix, String suffix,
+                             ShardWriter writer) throws Exception {
+        Engine engine = new Engine(project);
+        if (engineConfig != null) {
+            engine.initializeFromConfig(engineConfig);
+        }
+        List<Shard> shards = partition(project, engine, maxRows, maxBytes);
+
+        List<Callable<List<ObjectNode>>> tasks = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            final Shard shard = shards.get(i);
+            final String name = prefix + ".part-" + i;
+            tasks.add(() -> writeShard(project, engineConfig, job, shard, maxBytes, folder, name, suffix, writer));
+        }
+        // numbered once written, a split shard takes several numbers
+        List<ObjectNode> entries = new ArrayList<>();
+        for (List<ObjectNode> shardEntries : LocalImportingUtilities.runAll(tasks, concurrency, "workspace-export-shard")) {
+            entries.addAll(shardEntries);
+        }
+        int digits = Math.max(5, String.valueOf(entries.size() - 1).length());
+        for (int i = 0; i < entries.size(); i++) {
+            ObjectNode entry = entries.get(i);
+            String file = prefix + "." + String.format("%0" + digits + "d", i) + suffix;
+            Files.move(folder.resolve(entry.get("file").asText()), folder.resolve(file));
+            JSONUtilities.safePut(entry, "file", file);
+        }
+
+        ObjectNode manifest = ParsingUtilities.mapper.createObjectNode();
+        JSONUtilities.safePut(manifest, "projectID", project.id);
+        JSONUtilities.safePut(manifest, "mode", Engine.modeToString(engine.getMode()));
+        long rows = 0L;
+        long bytes = 0L;
+        ArrayNode shardsNode = ParsingUtilities.mapper.createArrayNode();
+        for (ObjectNode entry : entries) {
+            rows += entry.get("rows").asLong();
+            bytes += entry.get("bytes").asLong();
+            shardsNode.add(entry);
+        }
+        JSONUtilities.safePut(manifest, "rows", rows);
+        JSONUtilities.safePut(manifest, "bytes", bytes);
+        JSONUtilities.safePut(manifest, "shards", shardsNode);
+        ParsingUtilities.mapper.writerWithDefaultPrettyPrinter()
+                .writeValue(folder.resolve(prefix + MANIFEST_SUFFIX).toFile(), manifest);
+        return bytes;
+    }
+
+    /**
+     * Write {@code shard} as {@code <name><suffix>}, or when it is larger than {@code maxBytes} and holds more than
+     * one row or record, as the halves of it, each checked the same way.
+     *
+     * @return the manifest entries of the files written, in row order
+     */
+    private static List<ObjectNode> writeShard(Project project, EngineConfig engineConfig, WorkspaceExportJob job,
+                                               Shard shard, long maxBytes, Path folder, String name, String suffix,
+                                               ShardWriter writer) throws IOException {
+        Path path = folder.resolve(name + suffix);
+        Engine shardEngine = new RowCountingEngine(project, job.getRowCounter(), job::isCanceled, shard.indexes);
+        if (engineConfig != null) {
+            shardEngine.initializeFromConfig(engineConfig);
+        }
+        MessageDigest digest = sha256();
+        writer.write(shardEngine, path, digest);
+        if (job.isCanceled()) {
+            throw new IOException("Export canceled");
+        }
+
+        long size = Files.size(path);
+        List<ObjectNode> entries = new ArrayList<>();
+        if (maxBytes > 0 && size > maxBytes && shard.indexes.length > 1) {
+            Files.delete(path);
+            // the rows are counted again by the halves
+            job.getRowCounter().addAndGet(-shard.rows);
+            Shard[] halves = shard.split();
+            for (int i = 0; i < halves.length; i++) {
+                entries.addAll(writeShard(project, engineConfig, job, halves[i], maxBytes, folder, name + "-" + i,
+                        suffix, writer));
+            }
+            return entries;
+        }
+
+        ObjectNode entry = ParsingUtilities.mapper.createObjectNode();
+        JSONUtilities.safePut(entry, "file", path.getFileName().toString());
+        JSONUtilities.safePut(entry, "rows", shard.rows);
+        JSONUtilities.safePut(entry, "bytes", size);
+        JSONUtilities.safePut(entry, "sha256", toHex(digest.digest()));
+        entries.add(entry);
+        return entries;
+    }
+
+    /**
+     * Delete a folder of shards, partial or replaced by a new export.
+     */
+    public static void delete(Path folder) {
+        LocalFileSystemFiles.deleteRecursively(folder);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,126 @@
+package com.refinepro;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.refine.ProjectManager;
+import com.google.refine.ProjectMetadata;
+import com.google.refine.browsing.Engine;
+import com.google.refine.browsing.EngineConfig;
+import com.google.refine.browsing.facets.Facet;
+import com.google.refine.browsing.facets.FacetConfig;
+import com.google.refine.history.HistoryEntry;
+import com.google.refine.model.Project;
+import com.google.refine.util.JSONUtilities;
+import com.google.refine.util.ParsingUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * What a workspace export was written from: the project history and modification time, the facets that select
+ * rows and the export options. It is kept in a hidden file next to the export, so an export of an unchanged
+ * project with the same facets and options can keep the file already written.
+ */
+public class WorkspaceExportState {
+
+    private static final Logger logger = LoggerFactory.getLogger("WorkspaceExportState");
+
+    public static final String SUFFIX = ".export-state.json";
+
+    // request parameters that don't change what is written
+    private static final Set<String> IGNORED_OPTIONS = new HashSet<>(Arrays.asList(
+            "project", "engine", "csrf_token", "force", "concurrency"));
+
+    private WorkspaceExportState() {
+    }
+
+    /**
+     * The state of {@code project} as exported with {@code engineConfig} and {@code params}. Facets that don't
+     * filter anything, such as a list facet without a selection, are left out.
+     */
+    public static ObjectNode describe(Project project, EngineConfig engineConfig, Properties params) {
+        ObjectNode state = ParsingUtilities.mapper.createObjectNode();
+        JSONUtilities.safePut(state, "projectID", project.id);
+        List<HistoryEntry> lastEntries = project.history.getLastPastEntries(1);
+        JSONUtilities.safePut(state, "historyEntryID", lastEntries.isEmpty() ? 0L : lastEntries.get(0).id);
+        ProjectMetadata metadata = ProjectManager.singleton.getProjectMetadata(project.id);
+        if (metadata != null && metadata.getModified() != null) {
+            JSONUtilities.safePut(state, "modified", metadata.getModified().toString());
+        }
+
+        Engine.Mode mode = engineConfig == null ? Engine.Mode.RowBased : engineConfig.getMode();
+        ObjectNode engine = ParsingUtilities.mapper.createObjectNode();
+        JSONUtilities.safePut(engine, "mode", Engine.modeToString(mode));
+        ArrayNode facets = ParsingUtilities.mapper.createArrayNode();
+        if (engineConfig != null) {
+            for (FacetConfig facetConfig : engineConfig.getFacetConfigs()) {
+                Facet facet = facetConfig.apply(project);
+                boolean filters = mode == Engine.Mode.RecordBased
+                        ? facet.getRecordFilter(project) != null
+                        : facet.getRowFilter(project) != null;
+                if (filters) {
+                    facets.add(ParsingUtilities.mapper.valueToTree(facetConfig));
+                }
+            }
+        }
+        JSONUtilities.safePut(engine, "facets", facets);
+        JSONUtilities.safePut(state, "engine", engine);
+
+        ObjectNode options = ParsingUtilities.mapper.createObjectNode();
+        for (String name : new TreeSet<>(params.stringPropertyNames())) {
+            if (!IGNORED_OPTIONS.contains(name)) {
+                JSONUtilities.safePut(options, name, params.getProperty(name));
+            }
+        }
+        JSONUtilities.safePut(state, "options", options);
+        return state;
+    }
+
+    /**
+     * Whether {@code output} was written from {@code state} and not changed since.
+     */
+    public static boolean isUnchanged(Path output, ObjectNode state) {
+        Path statePath = statePath(output);
+        if (!Files.isRegularFile(output) || !Files.isRegularFile(statePath)) {
+            return false;
+        }
+        try {
+            ObjectNode recorded = ParsingUtilities.mapper.readValue(statePath.toFile(), ObjectNode.class);
+            ObjectNode file = (ObjectNode) recorded.remove("file");
+            if (file == null
+                    || file.path("size").asLong(-1L) != Files.size(output)
+                    || file.path("modified").asLong(-1L) != Files.getLastModifiedTime(output).toMillis()) {
+                return false;
+            }
+            // compared as text, numbers read back may not have the type they were written with
+            return ParsingUtilities.mapper.writeValueAsString(recorded)
+                    .equals(ParsingUtilities.mapper.writeValueAsString(state));
+        } catch (IOException | ClassCastException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Keep {@code state} next to {@code output}, along with the size and modification time of the file written.
+     */
+    public static void record(Path output, ObjectNode state) {
+        try {
+            ObjectNode recorded = state.deepCopy();
+            ObjectNode file = ParsingUtilities.mapper.createObjectNode();
+            JSONUtilities.safePut(file, "size", Files.size(output));
+            JSONUtilities.safePut(file, "modified", Files.getLastModifiedTime(output).toMillis());
+            JSONUtilities.safePut(recorded, "file", file);
+            ParsingUtilities.mapper.writeValue(statePath(output).toFile(), recorded);
+        } catch (IOException e) {
+            logger.warn("Cannot record the state of " + output + ": " + e.getMessage());
+        }
+    }
+
+    private static Path statePath(Path output) {
+        return output.resolveSibling("." + output.getFileName() + SUFFIX);
+    }
+}
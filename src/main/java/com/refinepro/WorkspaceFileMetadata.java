@@ -0,0 +1,239 @@
+package com.refinepro;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.refine.importing.FormatGuesser;
+import com.google.refine.importing.ImportingManager;
+import com.google.refine.util.JSONUtilities;
+import com.google.refine.util.ParsingUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Format, encoding and estimated row count of workspace files, sniffed from their head on a background pool.
+ * Listings only read the cache and queue the missing files, so they never wait for the content to be read. Each
+ * read takes a slot of the root of the file and its share of the root bandwidth, like the file copies of imports.
+ * Cached entries are dropped when the file size or modification time change.
+ */
+public class WorkspaceFileMetadata {
+
+    private static final Logger logger = LoggerFactory.getLogger("WorkspaceFileMetadata");
+
+    public static final String STATE_PENDING = "pending";
+    public static final String STATE_READY = "ready";
+
+    private static final int SAMPLE_SIZE = LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_GUESS_SAMPLE", 256 * 1024);
+
+    private static final String CACHE_KEY = "metadata";
+
+    private static final FileStateCache<ObjectNode> cache = new FileStateCache<>(
+            LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_METADATA_CACHE", 10000));
+
+    private static final ThreadPoolExecutor executor = LocalFileSystemMetrics.registerPool("metadata",
+            LocalFileSystemExecutors.newBoundedExecutor("workspace-metadata",
+                    LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_METADATA_THREADS", 2),
+                    LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_METADATA_QUEUE", 2000)));
+
+    private static final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    private WorkspaceFileMetadata() {
+    }
+
+    /**
+     * The cached metadata of {@code file}, or a pending placeholder after queueing its computation for {@code user}.
+     */
+    public static ObjectNode get(File file, String user) {
+        ObjectNode metadata = cache.get(file, CACHE_KEY);
+        if (metadata != null) {
+            return metadata;
+        }
+
+        final String path = file.getAbsolutePath();
+        if (inFlight.add(path)) {
+            try {
+                executor.execute(() -> {
+                    // the slot is taken by the pool thread, the other files wait in the pool queue, not the scheduler's
+                    WorkspaceScheduler.Permit permit = null;
+                    try {
+                        permit = WorkspaceScheduler.acquire(file, WorkspaceScheduler.Kind.READ, user);
+                        cache.put(file, CACHE_KEY, compute(file));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (RejectedExecutionException e) {
+                        // too many tasks waiting on the roots, the next poll asks again
+                    } finally {
+                        if (permit != null) {
+                            permit.close();
+                        }
+                        inFlight.remove(path);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // queue full, the next poll asks again
+                inFlight.remove(path);
+            }
+        }
+
+        ObjectNode pending = ParsingUtilities.mapper.createObjectNode();
+        JSONUtilities.safePut(pending, "state", STATE_PENDING);
+        return pending;
+    }
+
+    static ObjectNode compute(File file) {
+        LocalFileSystemMetrics.Timer timer = LocalFileSystemMetrics.start("file-metadata");
+        ObjectNode metadata = ParsingUtilities.mapper.createObjectNode();
+        JSONUtilities.safePut(metadata, "state", STATE_READY);
+        try {
+            String fileName = file.getName();
+            boolean gzip = fileName.toLowerCase().endsWith(".gz");
+            if (gzip) {
+                fileName = fileName.substring(0, fileName.length() - 3);
+                JSONUtilities.safePut(metadata, "compression", "gzip");
+            }
+
+            byte[] sample = new byte[SAMPLE_SIZE];
+            int length;
+            long consumed;
+            boolean complete;
+            WorkspaceRoot root = WorkspaceRoot.of(file);
+            InputStream in = Files.newInputStream(file.toPath());
+            try (CountingInputStream counting = new CountingInputStream(root == null ? in : root.getBandwidth().throttle(in));
+                 InputStream is = gzip ? new GZIPInputStream(counting, 64 * 1024) : counting) {
+                length = readFully(is, sample);
+                complete = length < sample.length || is.read() < 0;
+                consumed = counting.count;
+            }
+            timer.read(consumed);
+
+            String format = ImportingManager.getFormatFromFileName(fileName);
+            if (!gzip && isZip(sample, length)) {
+                // xlsx and ods are zip files too, other archives only reveal their entries once exploded by the import
+                if (format == null) {
+                    JSONUtilities.safePut(metadata, "compression", "zip");
+                } else {
+                    JSONUtilities.safePut(metadata, "format", format);
+                }
+                timer.success();
+                return metadata;
+            }
+
+            String encoding = CharsetDetector.detect(sample, length);
+            format = guessFormat(sample, length, encoding, format);
+            if (format != null) {
+                JSONUtilities.safePut(metadata, "format", format);
+            }
+            if (format == null || format.startsWith("text")) {
+                JSONUtilities.safePut(metadata, "encoding", encoding);
+                long lines = countLines(sample, length);
+                if (complete) {
+                    JSONUtilities.safePut(metadata, "rows", lines);
+                } else if (consumed > 0) {
+                    // scale the lines of the head to the whole file, compressed files by the compressed bytes read
+                    JSONUtilities.safePut(metadata, "estimatedRows", Math.round((double) lines * file.length() / consumed));
+                }
+            }
+            timer.success();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Cannot read metadata of " + file + ": " + e.getMessage());
+            JSONUtilities.safePut(metadata, "error", e.getMessage());
+        } finally {
+            timer.stop();
+        }
+        return metadata;
+    }
+
+    /**
+     * Run the registered guessers on the sample, the way the import does on the head of the file.
+     */
+    private static String guessFormat(byte[] sample, int length, String encoding, String format) throws IOException {
+        String bestFormat = format == null ? "text" : format;
+        if (!bestFormat.startsWith("text")) {
+            return format;
+        }
+        File sampleFile = File.createTempFile("workspace-metadata", ".sample");
+        try {
+            try (OutputStream os = new FileOutputStream(sampleFile)) {
+                os.write(sample, 0, length);
+            }
+            while (true) {
+                String betterFormat = null;
+                List<FormatGuesser> guessers = ImportingManager.formatToGuessers.get(bestFormat);
+                if (guessers != null) {
+                    for (FormatGuesser guesser : guessers) {
+                        betterFormat = guesser.guess(sampleFile, encoding, bestFormat);
+                        if (betterFormat != null) {
+                            break;
+                        }
+                    }
+                }
+                if (betterFormat == null || betterFormat.equals(bestFormat)) {
+                    break;
+                }
+                bestFormat = betterFormat;
+            }
+        } finally {
+            sampleFile.delete();
+        }
+        return bestFormat;
+    }
+
+    private static boolean isZip(byte[] sample, int length) {
+        return length >= 4 && sample[0] == 'P' && sample[1] == 'K' && sample[2] == 3 && sample[3] == 4;
+    }
+
+    private static int readFully(InputStream is, byte[] buffer) throws IOException {
+        int length = 0;
+        int c;
+        while (length < buffer.length && (c = is.read(buffer, length, buffer.length - length)) > 0) {
+            length += c;
+        }
+        return length;
+    }
+
+    private static long countLines(byte[] sample, int length) {
+        long lines = 0L;
+        for (int i = 0; i < length; i++) {
+            if (sample[i] == '\n') {
+                lines++;
+            }
+        }
+        if (length > 0 && sample[length - 1] != '\n') {
+            lines++;
+        }
+        return lines;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c >= 0) {
+                count++;
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int c = super.read(b, off, len);
+            if (c > 0) {
+                count += c;
+            }
+            return c;
+        }
+    }
+}
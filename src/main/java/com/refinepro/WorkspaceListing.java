@@ -0,0 +1,224 @@
+package com.refinepro;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Lists the workspace folder with NIO directory streams, the attributes of each entry are read in one call.
+ * Only the requested page is kept in memory while walking, sorted by name, size or modification time.
+ */
+public class WorkspaceListing {
+
+    public enum Sort {
+        NAME, SIZE, MTIME;
+
+        public static Sort fromString(String value) {
+            if (value != null) {
+                for (Sort sort : values()) {
+                    if (sort.name().equalsIgnoreCase(value.trim())) {
+                        return sort;
+                    }
+                }
+            }
+            return NAME;
+        }
+    }
+
+    public static class Entry {
+        public final Path path;
+        public final String name;
+        public final long size;
+        public final long modified;
+
+        Entry(Path path, String name, BasicFileAttributes attributes) {
+            this.path = path;
+            this.name = name;
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime().toMillis();
+        }
+    }
+
+    public static class Result {
+        public final List<Entry> entries;
+        public final int total;
+
+        Result(List<Entry> entries, int total) {
+            this.entries = entries;
+            this.total = total;
+        }
+    }
+
+    private final Path root;
+    private List<PathMatcher> matchers;
+    private Set<String> extensions;
+    private int maxDepth = 1;
+    private Sort sort = Sort.NAME;
+    private boolean descending;
+    private int offset;
+    private int limit;
+
+    public WorkspaceListing(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * @param pattern glob matched against the path relative to the workspace folder or the file name,
+     *                a leading {@code **}{@code /} also matches files directly in the workspace folder
+     */
+    public WorkspaceListing setPattern(String pattern) {
+        this.matchers = null;
+        if (pattern != null && !pattern.isEmpty()) {
+            FileSystem fileSystem = root.getFileSystem();
+            this.matchers = new ArrayList<>();
+            this.matchers.add(fileSystem.getPathMatcher("glob:" + pattern));
+            if (pattern.startsWith("**/")) {
+                this.matchers.add(fileSystem.getPathMatcher("glob:" + pattern.substring(3)));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @param extensions comma separated list of extensions, with or without the leading dot
+     */
+    public WorkspaceListing setExtensions(String extensions) {
+        this.extensions = null;
+        if (extensions != null && !extensions.trim().isEmpty()) {
+            this.extensions = new HashSet<>();
+            for (String extension : extensions.split(",")) {
+                extension = extension.trim().toLowerCase();
+                if (!extension.isEmpty()) {
+                    this.extensions.add(extension.startsWith(".") ? extension : ".".concat(extension));
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @param maxDepth 1 lists only the workspace folder, higher values descend into sub folders
+     */
+    public WorkspaceListing setMaxDepth(int maxDepth) {
+        this.maxDepth = Math.max(1, maxDepth);
+        return this;
+    }
+
+    public WorkspaceListing setSort(Sort sort, boolean descending) {
+        this.sort = sort;
+        this.descending = descending;
+        return this;
+    }
+
+    /**
+     * @param limit page size, 0 returns every entry after the offset
+     */
+    public WorkspaceListing setPage(int offset, int limit) {
+        this.offset = Math.max(0, offset);
+        this.limit = Math.max(0, limit);
+        return this;
+    }
+
+    public Result list() throws IOException {
+        final Comparator<Entry> comparator = comparator();
+        final int keep = limit > 0 ? offset + limit : Integer.MAX_VALUE;
+        // max-heap on the sort order, the last entry is evicted once the page is full
+        final PriorityQueue<Entry> page = new PriorityQueue<>(11, comparator.reversed());
+        final int[] total = {0};
+
+        if (Files.isDirectory(root)) {
+            walk(root, 1, entry -> {
+                total[0]++;
+                if (page.size() < keep) {
+                    page.add(entry);
+                } else if (comparator.compare(entry, page.peek()) < 0) {
+                    page.poll();
+                    page.add(entry);
+                }
+            });
+        }
+
+        List<Entry> entries = new ArrayList<>(page);
+        entries.sort(comparator);
+        entries = offset < entries.size() ? entries.subList(offset, entries.size()) : Collections.emptyList();
+        return new Result(entries, total[0]);
+    }
+
+    private void walk(Path dir, int depth, Consumer<Entry> consumer) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    // broken link or entry removed while listing
+                    continue;
+                }
+
+                if (attributes.isDirectory()) {
+                    if (depth < maxDepth) {
+                        try {
+                            walk(path, depth + 1, consumer);
+                        } catch (IOException | DirectoryIteratorException e) {
+                            // unreadable sub folder, skip it
+                        }
+                    }
+                } else if (attributes.isRegularFile()) {
+                    Path relative = root.relativize(path);
+                    if (accept(relative) && Files.isReadable(path)) {
+                        consumer.accept(new Entry(path, relative.toString(), attributes));
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean accept(Path relative) {
+        String fileName = relative.getFileName().toString();
+        if (fileName.contains(".~lock.") || fileName.endsWith(WorkspaceExportJob.PARTIAL_SUFFIX)
+                || fileName.endsWith(WorkspaceExportState.SUFFIX)) {
+            return false;
+        }
+        if (matchers != null && !matches(relative)) {
+            return false;
+        }
+        if (extensions != null) {
+            String lowerCase = fileName.toLowerCase();
+            for (String extension : extensions) {
+                if (lowerCase.endsWith(extension)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private boolean matches(Path relative) {
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(relative) || matcher.matches(relative.getFileName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Comparator<Entry> comparator() {
+        Comparator<Entry> byName = Comparator.comparing((Entry entry) -> entry.name, String.CASE_INSENSITIVE_ORDER)
+                .thenComparing(entry -> entry.name);
+        Comparator<Entry> comparator;
+        switch (sort) {
+            case SIZE:
+                comparator = Comparator.comparingLong((Entry entry) -> entry.size).thenComparing(byName);
+                break;
+            case MTIME:
+                comparator = Comparator.comparingLong((Entry entry) -> entry.modified).thenComparing(byName);
+                break;
+            default:
+                comparator = byName;
+        }
+        return descending ? comparator.reversed() : comparator;
+    }
+}
@@ -0,0 +1,218 @@
+package com.refinepro;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A named workspace folder, with its limits on concurrent listings, reads and writes and an optional bandwidth cap.
+ * The {@code default} root is {@code EXT_LOCAL_FILE_SYSTEM}, others are declared in {@code EXT_LOCAL_FILE_SYSTEM_ROOTS}
+ * as {@code name=path} entries separated by {@code ;}.
+ */
+public class WorkspaceRoot {
+
+    public static final String DEFAULT = "default";
+
+    private static final Map<String, WorkspaceRoot> roots = load();
+
+    private final String name;
+    private final File folder;
+    private final Path path;
+    private final Map<WorkspaceScheduler.Kind, Integer> limits = new EnumMap<>(WorkspaceScheduler.Kind.class);
+    private final Bandwidth bandwidth;
+
+    private WorkspaceRoot(String name, File folder) {
+        this.name = name;
+        this.folder = folder;
+        this.path = folder.toPath().toAbsolutePath().normalize();
+        for (WorkspaceScheduler.Kind kind : WorkspaceScheduler.Kind.values()) {
+            limits.put(kind, getInt(name, kind.setting, kind.defaultLimit));
+        }
+        this.bandwidth = new Bandwidth(Math.max(0L, getInt(name, "MBPS", 0)) * 1024 * 1024);
+    }
+
+    private static Map<String, WorkspaceRoot> load() {
+        Map<String, WorkspaceRoot> roots = new LinkedHashMap<>();
+        String defaultFolder = LocalFileSystemConfig.getString("EXT_LOCAL_FILE_SYSTEM",
+                Paths.get(System.getProperty("user.home"), "Downloads").toString());
+        roots.put(DEFAULT, new WorkspaceRoot(DEFAULT, new File(defaultFolder)));
+
+        String declared = LocalFileSystemConfig.getString("EXT_LOCAL_FILE_SYSTEM_ROOTS", "");
+        for (String entry : declared.split(";")) {
+            int separator = entry.indexOf('=');
+            if (separator <= 0 || separator == entry.length() - 1) {
+                continue;
+            }
+            String name = entry.substring(0, separator).trim();
+            String folder = entry.substring(separator + 1).trim();
+            if (!name.isEmpty() && !folder.isEmpty()) {
+                // a root named default replaces EXT_LOCAL_FILE_SYSTEM
+                roots.put(name, new WorkspaceRoot(name, new File(folder)));
+            }
+        }
+        return Collections.unmodifiableMap(roots);
+    }
+
+    /**
+     * {@code EXT_LOCAL_FILE_SYSTEM_ROOT_<NAME>_<setting>}, else {@code EXT_LOCAL_FILE_SYSTEM_ROOT_<setting>}.
+     */
+    private static int getInt(String name, String setting, int defaultValue) {
+        int value = LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_ROOT_" + setting, defaultValue);
+        String key = name.toUpperCase(Locale.ROOT).replaceAll("[^A-Z0-9]", "_");
+        return LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_ROOT_" + key + "_" + setting, value);
+    }
+
+    public static WorkspaceRoot getDefault() {
+        return roots.get(DEFAULT);
+    }
+
+    /**
+     * @param name null or empty for the default root
+     * @throws IllegalArgumentException when no root has this name
+     */
+    public static WorkspaceRoot get(String name) {
+        if (name == null || name.trim().isEmpty()) {
+            return getDefault();
+        }
+        WorkspaceRoot root = roots.get(name.trim());
+        if (root == null) {
+            throw new IllegalArgumentException("No such workspace root '" + name + "'");
+        }
+        return root;
+    }
+
+    public static Collection<WorkspaceRoot> getAll() {
+        return roots.values();
+    }
+
+    /**
+     * The root {@code file} is in, the deepest one when roots are nested, null when it is in none.
+     */
+    public static WorkspaceRoot of(File file) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        WorkspaceRoot found = null;
+        for (WorkspaceRoot root : roots.values()) {
+            if (path.startsWith(root.path) && (found == null || root.path.startsWith(found.path))) {
+                found = root;
+            }
+        }
+        return found;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * Maximum number of concurrent tasks of {@code kind}, 0 or less for no limit.
+     */
+    public int getLimit(WorkspaceScheduler.Kind kind) {
+        return limits.get(kind);
+    }
+
+    public Bandwidth getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * Bytes per second shared by every read and write of a root. Each caller reserves the time its bytes take on
+     * a common timeline and sleeps until then, so concurrent copies split the bandwidth between them.
+     */
+    public static class Bandwidth {
+        private final long bytesPerSecond;
+        private long next;
+
+        Bandwidth(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        public long getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /**
+         * Wait until {@code bytes} more bytes fit in the cap.
+         */
+        public void acquire(long bytes) throws InterruptedIOException {
+            if (bytesPerSecond <= 0 || bytes <= 0) {
+                return;
+            }
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                // an idle root doesn't save up bandwidth
+                if (next - now < 0) {
+                    next = now;
+                }
+                wait = next - now;
+                next += TimeUnit.SECONDS.toNanos(1) * bytes / bytesPerSecond;
+            }
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+                }
+            }
+        }
+
+        /**
+         * {@code in}, reading no faster than the cap.
+         */
+        public InputStream throttle(InputStream in) {
+            if (bytesPerSecond <= 0) {
+                return in;
+            }
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    acquire(1);
+                    return in.read();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = in.read(b, off, len);
+                    // waits after the read, a short read only pays for what it got
+                    acquire(read);
+                    return read;
+                }
+            };
+        }
+
+        /**
+         * {@code out}, writing no faster than the cap.
+         */
+        public OutputStream throttle(OutputStream out) {
+            if (bytesPerSecond <= 0) {
+                return out;
+            }
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    acquire(1);
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    acquire(len);
+                    out.write(b, off, len);
+                }
+            };
+        }
+    }
+}
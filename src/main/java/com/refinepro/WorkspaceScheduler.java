@@ -0,0 +1,294 @@
+package com.refinepro;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.refine.util.JSONUtilities;
+import com.google.refine.util.ParsingUtilities;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Shared queue of the listings, imports and exports of the workspace roots. Each root runs at most its limit of
+ * tasks of each kind at once, the others wait. A free slot goes to the users in turn, so one user queuing many
+ * copies doesn't hold back the others.
+ */
+public class WorkspaceScheduler {
+
+    // tasks waiting over every root, further ones are rejected
+    private static final int MAX_QUEUED = LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_SCHEDULER_QUEUE", 256);
+
+    public enum Kind {
+        LIST("LISTS", 8),
+        READ("READS", 4),
+        WRITE("WRITES", 2);
+
+        final String setting;
+        final int defaultLimit;
+
+        Kind(String setting, int defaultLimit) {
+            this.setting = setting;
+            this.defaultLimit = defaultLimit;
+        }
+    }
+
+    private static final Map<String, Lane> lanes = new LinkedHashMap<>();
+
+    private static int queued;
+
+    private WorkspaceScheduler() {
+    }
+
+    /**
+     * The user a request is scheduled for: its authenticated user, else its remote address.
+     */
+    public static String getUser(HttpServletRequest request) {
+        String user = request.getRemoteUser();
+        return user != null ? user : request.getRemoteAddr();
+    }
+
+    /**
+     * Wait for a slot of {@code kind} on {@code root}, to be closed once the work is done.
+     *
+     * @throws RejectedExecutionException when too many tasks are waiting
+     */
+    public static Permit acquire(WorkspaceRoot root, Kind kind, String user) throws InterruptedException {
+        BlockingTicket ticket = new BlockingTicket(user);
+        enqueue(root, kind, ticket);
+        try {
+            ticket.granted.await();
+        } catch (InterruptedException e) {
+            synchronized (WorkspaceScheduler.class) {
+                if (ticket.permit == null) {
+                    lane(root, kind).remove(ticket);
+                    queued--;
+                    throw e;
+                }
+            }
+            // granted meanwhile
+            ticket.permit.close();
+            throw e;
+        }
+        return ticket.permit;
+    }
+
+    /**
+     * Wait for a slot of {@code kind} on the root {@code file} is in.
+     *
+     * @return null when {@code file} is in no root, there is nothing to wait for
+     */
+    public static Permit acquire(File file, Kind kind, String user) throws InterruptedException {
+        WorkspaceRoot root = WorkspaceRoot.of(file);
+        return root == null ? null : acquire(root, kind, user);
+    }
+
+    /**
+     * A slot of {@code kind} on {@code root} when one is free and no task is waiting for it, without waiting. A
+     * task already holding a slot takes more this way, waiting for them could deadlock with another such task.
+     *
+     * @return null when there is none
+     */
+    public static synchronized Permit tryAcquire(WorkspaceRoot root, Kind kind) {
+        Lane lane = lane(root, kind);
+        int limit = root.getLimit(kind);
+        if (!lane.waiting.isEmpty() || (limit > 0 && lane.running >= limit)) {
+            return null;
+        }
+        lane.running++;
+        return new Permit(lane);
+    }
+
+    /**
+     * An executor handing the tasks to {@code executor} once {@code root} has a free slot of {@code kind}.
+     * It rejects tasks when too many are waiting, not when {@code executor} is full, they then wait for a
+     * running task to end.
+     */
+    public static Executor executor(WorkspaceRoot root, Kind kind, String user, Executor executor) {
+        return task -> enqueue(root, kind, new ExecutorTicket(user, executor, task));
+    }
+
+    private static synchronized void enqueue(WorkspaceRoot root, Kind kind, Ticket ticket) {
+        if (queued >= MAX_QUEUED) {
+            throw new RejectedExecutionException("Too many workspace tasks waiting");
+        }
+        Lane lane = lane(root, kind);
+        lane.waiting.computeIfAbsent(ticket.user, u -> new ArrayDeque<>()).add(ticket);
+        queued++;
+        lane.dispatch();
+    }
+
+    private static Lane lane(WorkspaceRoot root, Kind kind) {
+        return lanes.computeIfAbsent(root.getName() + "/" + kind.name(), k -> new Lane(root, kind));
+    }
+
+    /**
+     * Running and waiting tasks of every root and kind used so far, with the queue depth of each user.
+     */
+    public static synchronized ObjectNode toJson() {
+        ObjectNode result = ParsingUtilities.mapper.createObjectNode();
+        JSONUtilities.safePut(result, "queued", queued);
+        JSONUtilities.safePut(result, "maxQueued", MAX_QUEUED);
+        ArrayNode roots = ParsingUtilities.mapper.createArrayNode();
+        for (WorkspaceRoot root : WorkspaceRoot.getAll()) {
+            ObjectNode rootNode = ParsingUtilities.mapper.createObjectNode();
+            JSONUtilities.safePut(rootNode, "name", root.getName());
+            JSONUtilities.safePut(rootNode, "localPath", root.getFolder().getAbsolutePath());
+            JSONUtilities.safePut(rootNode, "bytesPerSecond", root.getBandwidth().getBytesPerSecond());
+            for (Kind kind : Kind.values()) {
+                Lane lane = lanes.get(root.getName() + "/" + kind.name());
+                ObjectNode laneNode = ParsingUtilities.mapper.createObjectNode();
+                JSONUtilities.safePut(laneNode, "limit", root.getLimit(kind));
+                JSONUtilities.safePut(laneNode, "running", lane == null ? 0 : lane.running);
+                ObjectNode users = ParsingUtilities.mapper.createObjectNode();
+                int waiting = 0;
+                if (lane != null) {
+                    for (Map.Entry<String, ArrayDeque<Ticket>> entry : lane.waiting.entrySet()) {
+                        JSONUtilities.safePut(users, entry.getKey(), entry.getValue().size());
+                        waiting += entry.getValue().size();
+                    }
+                }
+                JSONUtilities.safePut(laneNode, "queued", waiting);
+                JSONUtilities.safePut(laneNode, "queuedByUser", users);
+                JSONUtilities.safePut(rootNode, kind.name().toLowerCase(Locale.ROOT), laneNode);
+            }
+            roots.add(rootNode);
+        }
+        JSONUtilities.safePut(result, "roots", roots);
+        return result;
+    }
+
+    /**
+     * The slots of one kind on one root, with the waiting tasks of each user in the order they are served.
+     */
+    private static class Lane {
+        final WorkspaceRoot root;
+        final Kind kind;
+        // the user served last moves to the end
+        final LinkedHashMap<String, ArrayDeque<Ticket>> waiting = new LinkedHashMap<>();
+        int running;
+
+        Lane(WorkspaceRoot root, Kind kind) {
+            this.root = root;
+            this.kind = kind;
+        }
+
+        void dispatch() {
+            int limit = root.getLimit(kind);
+            while ((limit <= 0 || running < limit) && !waiting.isEmpty()) {
+                Iterator<Map.Entry<String, ArrayDeque<Ticket>>> iterator = waiting.entrySet().iterator();
+                Map.Entry<String, ArrayDeque<Ticket>> next = iterator.next();
+                iterator.remove();
+                Ticket ticket = next.getValue().poll();
+                if (!next.getValue().isEmpty()) {
+                    waiting.put(next.getKey(), next.getValue());
+                }
+                queued--;
+                running++;
+                if (!ticket.grant(new Permit(this))) {
+                    // the executor is full, wait for one of its tasks to end
+                    running--;
+                    queued++;
+                    waiting.computeIfAbsent(ticket.user, u -> new ArrayDeque<>()).addFirst(ticket);
+                    return;
+                }
+            }
+        }
+
+        void remove(Ticket ticket) {
+            ArrayDeque<Ticket> tickets = waiting.get(ticket.user);
+            if (tickets != null && tickets.remove(ticket) && tickets.isEmpty()) {
+                waiting.remove(ticket.user);
+            }
+        }
+
+        void release() {
+            running--;
+            // a rejected task may be waiting on another lane sharing the executor
+            for (Lane lane : lanes.values()) {
+                lane.dispatch();
+            }
+        }
+    }
+
+    /**
+     * A slot taken on a root, released once closed.
+     */
+    public static class Permit implements AutoCloseable {
+        private final Lane lane;
+        private boolean closed;
+
+        private Permit(Lane lane) {
+            this.lane = lane;
+        }
+
+        @Override
+        public void close() {
+            synchronized (WorkspaceScheduler.class) {
+                if (!closed) {
+                    closed = true;
+                    lane.release();
+                }
+            }
+        }
+    }
+
+    private abstract static class Ticket {
+        final String user;
+
+        Ticket(String user) {
+            this.user = user == null ? "" : user;
+        }
+
+        /**
+         * @return false when the task can't start yet
+         */
+        abstract boolean grant(Permit permit);
+    }
+
+    private static class BlockingTicket extends Ticket {
+        final CountDownLatch granted = new CountDownLatch(1);
+        Permit permit;
+
+        BlockingTicket(String user) {
+            super(user);
+        }
+
+        @Override
+        boolean grant(Permit permit) {
+            this.permit = permit;
+            granted.countDown();
+            return true;
+        }
+    }
+
+    private static class ExecutorTicket extends Ticket {
+        final Executor executor;
+        final Runnable task;
+
+        ExecutorTicket(String user, Executor executor, Runnable task) {
+            super(user);
+            this.executor = executor;
+            this.task = task;
+        }
+
+        @Override
+        boolean grant(Permit permit) {
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        permit.close();
+                    }
+                });
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package com.refinepro;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.refine.importing.ImportingJob;
+import com.google.refine.importing.ImportingManager;
+import com.google.refine.util.JSONUtilities;
+import com.google.refine.util.ParsingUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Optional watch mode of the workspace folder: files dropped into it become projects without the import wizard.
+ * A new file is imported once its size and modification time stopped changing for the settle time, on a bounded
+ * pool, with the format and options of the first rule whose glob matches its path. Files already in the folder
+ * at start up, and changes to a file after it was seen, are left alone.
+ */
+public class WorkspaceWatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger("WorkspaceWatcher");
+
+    public static final boolean ENABLED = LocalFileSystemConfig.getBoolean("EXT_LOCAL_FILE_SYSTEM_WATCH", false);
+
+    private static final long SETTLE_MILLIS = LocalFileSystemConfig.getLong("EXT_LOCAL_FILE_SYSTEM_WATCH_SETTLE_SECONDS", 5L) * 1000L;
+
+    private static final int MAX_DEPTH = LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_WATCH_DEPTH", 5);
+
+    private static final String RULES_FILE = LocalFileSystemConfig.getString("EXT_LOCAL_FILE_SYSTEM_WATCH_RULES", null);
+
+    private static final String DEFAULT_PATTERN = LocalFileSystemConfig.getString("EXT_LOCAL_FILE_SYSTEM_WATCH_PATTERN", "*");
+
+    private static final long POLL_MILLIS = 1000L;
+
+    private static final ThreadPoolExecutor executor = LocalFileSystemMetrics.registerPool("watch",
+            LocalFileSystemExecutors.newBoundedExecutor("workspace-watch-import",
+                    LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_WATCH_THREADS", 1),
+                    LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_WATCH_QUEUE", 100)));
+
+    // the imports of the watcher queue for the root like the ones of a user
+    private static final String WATCH_USER = "watcher";
+
+    private static WorkspaceWatcher instance;
+
+    private final Path root;
+    private final List<Rule> rules;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    // every file seen, so a lost event rescan only picks up new files
+    private final Set<Path> seen = new HashSet<>();
+    private final Map<Path, Waiting> waiting = new ConcurrentHashMap<>();
+
+    /**
+     * An import rule read from the rules file: a glob and the format, parser options and ingest strategy
+     * of the files it matches. The format is guessed and the options are the parser defaults when missing.
+     */
+    static class Rule {
+        final String pattern;
+        final List<PathMatcher> matchers = new ArrayList<>();
+        final String format;
+        final ObjectNode options;
+        final String ingestStrategy;
+
+        Rule(FileSystem fileSystem, String pattern, String format, ObjectNode options, String ingestStrategy) {
+            this.pattern = pattern;
+            this.format = format;
+            this.options = options;
+            this.ingestStrategy = ingestStrategy;
+            // same matching as the workspace listing
+            matchers.add(fileSystem.getPathMatcher("glob:" + pattern));
+            if (pattern.startsWith("**/")) {
+                matchers.add(fileSystem.getPathMatcher("glob:" + pattern.substring(3)));
+            }
+        }
+
+        boolean matches(Path relative) {
+            for (PathMatcher matcher : matchers) {
+                if (matcher.matches(relative) || matcher.matches(relative.getFileName())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Waiting {
+        final WorkspaceAutoImport autoImport;
+        final Rule rule;
+        long size = -1L;
+        long modified = -1L;
+        long stableSince;
+
+        Waiting(WorkspaceAutoImport autoImport, Rule rule) {
+            this.autoImport = autoImport;
+            this.rule = rule;
+        }
+    }
+
+    private WorkspaceWatcher(Path root, List<Rule> rules) throws IOException {
+        this.root = root;
+        this.rules = rules;
+        this.watchService = root.getFileSystem().newWatchService();
+    }
+
+    /**
+     * Start watching {@code folder} when the watch mode is enabled, once per server.
+     */
+    public static synchronized void start(File folder) {
+        if (!ENABLED || instance != null) {
+            return;
+        }
+        try {
+            Path root = folder.toPath().toAbsolutePath().normalize();
+            WorkspaceWatcher watcher = new WorkspaceWatcher(root, readRules(root.getFileSystem()));
+            watcher.registerAll(root, false);
+            Thread thread = new Thread(watcher::run, "workspace-watch");
+            thread.setDaemon(true);
+            thread.start();
+            instance = watcher;
+            logger.info("Watching " + root + " for files to import");
+        } catch (IOException e) {
+            logger.error("Cannot watch " + folder, e);
+        }
+    }
+
+    public static synchronized boolean isRunning() {
+        return instance != null;
+    }
+
+    static List<Rule> readRules(FileSystem fileSystem) throws IOException {
+        List<Rule> rules = new ArrayList<>();
+        if (RULES_FILE == null) {
+            rules.add(new Rule(fileSystem, DEFAULT_PATTERN, null, null, null));
+            return rules;
+        }
+        JsonNode node = ParsingUtilities.mapper.readTree(new File(RULES_FILE));
+        if (!(node instanceof ArrayNode)) {
+            throw new IOException(RULES_FILE + " must hold an array of rules");
+        }
+        for (JsonNode rule : node) {
+            if (!(rule instanceof ObjectNode) || !rule.hasNonNull("pattern")) {
+                throw new IOException("Every rule of " + RULES_FILE + " needs a pattern");
+            }
+            ObjectNode options = JSONUtilities.getObject((ObjectNode) rule, "options");
+            rules.add(new Rule(fileSystem, rule.get("pattern").asText(),
+                    JSONUtilities.getString((ObjectNode) rule, "format", null), options,
+                    JSONUtilities.getString((ObjectNode) rule, "ingestStrategy", null)));
+        }
+        return rules;
+    }
+
+    private void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+            try {
+                if (key != null) {
+                    processEvents(key);
+                }
+                checkWaitingFiles();
+            } catch (RuntimeException e) {
+                logger.error("Workspace watch failed", e);
+            }
+        }
+    }
+
+    private void processEvents(WatchKey key) {
+        Path dir = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || dir == null) {
+                // events were lost, look for the files they were about
+                registerAll(root, true);
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE) {
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    registerAll(path, true);
+                } else {
+                    fileCreated(path);
+                }
+            } else if (event.kind() == ENTRY_DELETE) {
+                seen.remove(path);
+                Waiting entry = waiting.remove(path);
+                if (entry != null) {
+                    WorkspaceAutoImport.remove(entry.autoImport);
+                }
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+    }
+
+    /**
+     * Watch {@code start} and its sub folders up to the watch depth.
+     *
+     * @param created whether files found are new, rather than present at start up
+     */
+    private void registerAll(Path start, boolean created) {
+        if (depth(start) >= MAX_DEPTH) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(start, MAX_DEPTH - depth(start))) {
+            paths.forEach(path -> {
+                try {
+                    if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        // files are imported down to the watch depth, like the recursive listing
+                        if (depth(path) < MAX_DEPTH) {
+                            directories.put(path.register(watchService, ENTRY_CREATE, ENTRY_DELETE), path);
+                        }
+                    } else if (created) {
+                        fileCreated(path);
+                    } else {
+                        seen.add(path);
+                    }
+                } catch (IOException e) {
+                    logger.warn("Cannot watch " + path + ": " + e.getMessage());
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            logger.warn("Cannot watch " + start + ": " + e.getMessage());
+        }
+    }
+
+    private int depth(Path path) {
+        return path.equals(root) ? 0 : root.relativize(path).getNameCount();
+    }
+
+    private void fileCreated(Path path) {
+        if (!seen.add(path)) {
+            return;
+        }
+        String name = path.getFileName().toString();
+        // hidden files include exports being written, finished exports must not be imported back
+        if (name.startsWith(".") || name.contains("(Export).")) {
+            return;
+        }
+        Path relative = root.relativize(path);
+        for (Rule rule : rules) {
+            if (rule.matches(relative)) {
+                waiting.put(path, new Waiting(WorkspaceAutoImport.create(relative.toString(), rule.pattern), rule));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queue the files whose size and modification time did not change for the settle time.
+     */
+    private void checkWaitingFiles() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, Waiting>> iterator = waiting.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Waiting> entry = iterator.next();
+            Waiting file = entry.getValue();
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(entry.getKey(), BasicFileAttributes.class);
+            } catch (IOException e) {
+                // gone before it settled
+                iterator.remove();
+                WorkspaceAutoImport.remove(file.autoImport);
+                continue;
+            }
+            long modified = attributes.lastModifiedTime().toMillis();
+            if (attributes.size() != file.size || modified != file.modified) {
+                file.size = attributes.size();
+                file.modified = modified;
+                file.stableSince = now;
+                file.autoImport.setSize(file.size);
+            } else if (now - file.stableSince >= SETTLE_MILLIS) {
+                file.autoImport.queue();
+                try {
+                    // the copy waits for a READ slot of the root on its own
+                    executor.execute(() -> importFile(file.autoImport, file.rule));
+                    iterator.remove();
+                } catch (RejectedExecutionException e) {
+                    // pool full, try again on the next check
+                }
+            }
+        }
+    }
+
+    /**
+     * load-raw-data, format guess and create-project, the steps of the import wizard.
+     */
+    private void importFile(WorkspaceAutoImport autoImport, Rule rule) {
+        autoImport.start();
+        LocalFileSystemMetrics.Timer timer = LocalFileSystemMetrics.start("watch-import");
+        ImportingJob job = null;
+        try {
+            job = ImportingManager.createJob();
+            Properties parameters = new Properties();
+            parameters.setProperty("localFile", autoImport.path);
+            if (rule.ingestStrategy != null) {
+                parameters.setProperty("ingestStrategy", rule.ingestStrategy);
+            }
+            ObjectNode config = job.getOrCreateDefaultConfig();
+            LocalImportingUtilities.loadDataAndPrepareJob(root.toFile(), parameters, WATCH_USER, job, config);
+            if ("error".equals(JSONUtilities.getString(config, "state", null))) {
+                throw new IOException(JSONUtilities.getString(config, "errorDetails", "Cannot load " + autoImport.path));
+            }
+
+            String format = rule.format;
+            if (format == null) {
+                ArrayNode rankedFormats = JSONUtilities.getArray(config, "rankedFormats");
+                format = rankedFormats == null || rankedFormats.size() == 0 ? null : rankedFormats.get(0).asText();
+            }
+            ImportingManager.Format record = format == null ? null : ImportingManager.formatToRecord.get(format);
+            if (record == null || record.parser == null) {
+                throw new IOException("No parser for the format " + format + " of " + autoImport.path);
+            }
+
+            ObjectNode options = LocalImportingUtilities.createParserUIInitializationData(job, record, format);
+            if (rule.options != null) {
+                options.setAll(rule.options.deepCopy());
+            }
+            if (!options.hasNonNull("projectName")) {
+                JSONUtilities.safePut(options, "projectName", Paths.get(autoImport.path).getFileName().toString());
+            }
+
+            List<Exception> exceptions = new ArrayList<>();
+            long projectID = LocalImportingUtilities.createProject(job, format, options, exceptions);
+            if (!exceptions.isEmpty()) {
+                throw exceptions.get(0);
+            }
+            autoImport.finish(projectID);
+            timer.success();
+            logger.info("Imported " + autoImport.path + " as project " + projectID);
+        } catch (Exception e) {
+            logger.warn("Cannot import " + autoImport.path + ": " + e.getMessage());
+            autoImport.fail(e);
+        } finally {
+            timer.stop();
+            if (job != null) {
+                ImportingManager.disposeJob(job.id);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.refinepro.commands;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.refine.commands.Command;
+import com.google.refine.history.HistoryEntry;
+import com.google.refine.model.Project;
+import com.refinepro.LocalFileAppend;
+import com.refinepro.WorkspaceRoot;
+import com.refinepro.WorkspaceScheduler;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Appends the lines added to the workspace file of a project since it was created, or since the last append.
+ */
+public class AppendRowsCommand extends Command {
+
+
+    protected static class AppendResponse {
+        @JsonProperty("code")
+        protected String code;
+        @JsonProperty("message")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        protected String message;
+        @JsonProperty("reason")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        protected String reason;
+        @JsonProperty("historyEntry")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        protected HistoryEntry historyEntry;
+        @JsonProperty("rowsAppended")
+        protected int rowsAppended;
+        @JsonProperty("offset")
+        protected long offset;
+
+        protected AppendResponse(String code, String message, String reason, LocalFileAppend.Result result) {
+            this.code = code;
+            this.message = message;
+            this.reason = reason;
+            if (result != null) {
+                this.historyEntry = result.historyEntry;
+                this.rowsAppended = result.rowsAppended;
+                this.offset = result.offset;
+            }
+        }
+    }
+
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        if (!hasValidCSRFToken(request)) {
+            respondCSRFError(response);
+            return;
+        }
+
+        Project project = getProject(request);
+        LocalFileAppend.Result result;
+        try {
+            result = LocalFileAppend.append(project, WorkspaceRoot.getDefault().getFolder(),
+                    WorkspaceScheduler.getUser(request));
+        } catch (LocalFileAppend.AppendException e) {
+            respondJSON(response, new AppendResponse("error", e.getMessage(), e.reason, null));
+            return;
+        } catch (IOException e) {
+            logger.warn("Cannot append rows to project " + project.id, e);
+            respondJSON(response, new AppendResponse("error", e.getMessage(), null, null));
+            return;
+        }
+        respondJSON(response, new AppendResponse("ok", null, null, result));
+    }
+}
@@ -0,0 +1,44 @@
+package com.refinepro.commands;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.refine.commands.Command;
+import com.google.refine.util.JSONUtilities;
+import com.refinepro.LocalFileSystemMetrics;
+import com.refinepro.WorkspaceScheduler;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Latency histograms, errors, bytes and pool load of the import sub commands and the workspace export, and the
+ * queues of the workspace roots.
+ */
+public class LocalFileSystemMetricsCommand extends Command {
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        ObjectNode metrics = LocalFileSystemMetrics.toJson();
+        JSONUtilities.safePut(metrics, "scheduler", WorkspaceScheduler.toJson());
+        JSONUtilities.safePut(metrics, "code", "ok");
+        respondJSON(response, metrics);
+    }
+
+    /**
+     * Reset the stage metrics, the pool gauges are live values and are left alone.
+     */
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        if (!hasValidCSRFToken(request)) {
+            respondCSRFError(response);
+            return;
+        }
+        if ("true".equals(request.getParameter("reset"))) {
+            LocalFileSystemMetrics.reset();
+        }
+        doGet(request, response);
+    }
+}
@@ -0,0 +1,64 @@
+package com.refinepro.commands;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.refine.commands.Command;
+import com.refinepro.WorkspaceAutoImport;
+import com.refinepro.WorkspaceWatcher;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reports the files of the watched workspace folder waiting, queued, running, imported or failed,
+ * with the count of each state.
+ */
+public class WatchStatusCommand extends Command {
+
+    protected static class StatusResponse {
+        @JsonProperty("code")
+        protected String code = "ok";
+        @JsonProperty("watching")
+        protected boolean watching;
+        @JsonProperty("counts")
+        protected Map<String, Integer> counts = new TreeMap<>();
+        @JsonProperty("imports")
+        protected List<WorkspaceAutoImport> imports;
+
+        protected StatusResponse(boolean watching, List<WorkspaceAutoImport> imports) {
+            this.watching = watching;
+            this.imports = imports;
+            for (WorkspaceAutoImport autoImport : imports) {
+                counts.merge(autoImport.getState(), 1, Integer::sum);
+            }
+        }
+    }
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        doPost(request, response);
+    }
+
+    /**
+     * This command uses POST but does not actually modify any state so
+     * it is not CSRF-protected.
+     */
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+
+        List<WorkspaceAutoImport> imports = WorkspaceAutoImport.getAll();
+        String state = request.getParameter("state");
+        if (state != null && !state.isEmpty()) {
+            imports.removeIf(autoImport -> !state.equals(autoImport.getState()));
+        }
+        imports.sort(Comparator.comparingLong((WorkspaceAutoImport autoImport) -> autoImport.id).reversed());
+        respondJSON(response, new StatusResponse(WorkspaceWatcher.isRunning(), imports));
+    }
+}
@@ -1,24 +1,60 @@
 package com.refinepro.commands;
 
 import com.fasterxml.jackson.core.JsonGenerator;
-import com.google.refine.ProjectManager;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.refine.browsing.Engine;
+import com.google.refine.browsing.EngineConfig;
 import com.google.refine.commands.Command;
 import com.google.refine.exporters.*;
 import com.google.refine.model.Project;
 import com.google.refine.util.ParsingUtilities;
+import com.refinepro.LocalFileSystemConfig;
+import com.refinepro.LocalFileSystemExecutors;
+import com.refinepro.LocalFileSystemMetrics;
+import com.refinepro.LocalImportingUtilities;
+import com.refinepro.RowCountingEngine;
+import com.refinepro.WorkspaceExportFeed;
+import com.refinepro.WorkspaceExportJob;
+import com.refinepro.WorkspaceExportProcess;
+import com.refinepro.WorkspaceExportShards;
+import com.refinepro.WorkspaceExportState;
+import com.refinepro.WorkspaceRoot;
+import com.refinepro.WorkspaceScheduler;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Enumeration;
-import java.util.Properties;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 public class WorkspaceExportCommand extends Command {
 
-    private static final String LOCAL_FOLDER = System.getenv("EXT_LOCAL_FILE_SYSTEM") == null || System.getenv("EXT_LOCAL_FILE_SYSTEM").isEmpty() ? Paths.get(System.getProperty("user.home"), "Downloads").toString() : System.getenv("EXT_LOCAL_FILE_SYSTEM");
+    private static final int BUFFER_SIZE = LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_EXPORT_BUFFER", 1024 * 1024);
+
+    private static final String COMPRESSION = LocalFileSystemConfig.getString("EXT_LOCAL_FILE_SYSTEM_EXPORT_COMPRESSION", "none");
+
+    private static final int COMPRESSION_LEVEL = LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_EXPORT_COMPRESSION_LEVEL", Deflater.DEFAULT_COMPRESSION);
+
+    private static final int COMPRESSION_BUFFER_SIZE = LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_EXPORT_COMPRESSION_BUFFER", 64 * 1024);
+
+    private static final int SHARD_CONCURRENCY = LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_EXPORT_SHARD_THREADS", 4);
+
+    private static final ExecutorService exportExecutor = LocalFileSystemMetrics.registerPool("export",
+            LocalFileSystemExecutors.newBoundedExecutor("workspace-export",
+                    LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_EXPORT_THREADS", 2),
+                    LocalFileSystemConfig.getInt("EXT_LOCAL_FILE_SYSTEM_EXPORT_QUEUE", 32)));
 
     static public Properties getRequestParameters(HttpServletRequest request) {
         Properties options = new Properties();
@@ -35,31 +71,114 @@ public class WorkspaceExportCommand extends Command {
     public void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
 
-        ProjectManager.singleton.setBusy(true);
-
         try {
-            Project project = getProject(request);
-            Engine engine = getEngine(request, project);
-            Properties params = getRequestParameters(request);
+            final Project project = getProject(request);
+            final Properties params = getRequestParameters(request);
+            final WorkspaceRoot root;
+            try {
+                root = WorkspaceRoot.get(params.getProperty("root"));
+            } catch (IllegalArgumentException e) {
+                respondException(response, new ServletException(e.getMessage()));
+                return;
+            }
+            final String folder = root.getFolder().getPath();
+
+            // several comma separated formats share one pass over the rows selected by the facets
+            final Map<String, Exporter> exporters = new LinkedHashMap<>();
+            for (String format : params.getProperty("format", "").split(",")) {
+                format = format.trim();
+                if (format.isEmpty()) {
+                    continue;
+                }
+                Exporter exporter = ExporterRegistry.getExporter(format);
+                if (!(exporter instanceof WriterExporter) && !(exporter instanceof StreamExporter)) {
+                    respondException(response, new ServletException(exporter == null
+                            ? "Unknown export format '" + format + "'"
+                            : "Unsupported exporter type for format '" + format + "'"));
+                    return;
+                }
+                exporters.put(format, exporter);
+            }
+            if (exporters.isEmpty()) {
+                respondException(response, new ServletException("No export format"));
+                return;
+            }
+            final String format = exporters.keySet().iterator().next();
+            final Exporter exporter = exporters.get(format);
 
-            String format = params.getProperty("format");
             String name = params.getProperty("name", "no_name");
-            name = name.trim().concat("(Export).").concat(format);
-            String filePath = Paths.get(LOCAL_FOLDER, name).toString();
-            Exporter exporter = ExporterRegistry.getExporter(format);
-            if (exporter == null) {
-                exporter = new CsvExporter('\t');
+            final long shardRows = getLong(params, "shardRows", 0L);
+            final long shardBytes = getLong(params, "shardBytes", 0L);
+            final boolean partitioned = shardRows > 0 || shardBytes > 0;
+            if (partitioned && exporters.size() > 1) {
+                respondException(response, new ServletException("A partitioned export takes a single format"));
+                return;
+            }
+            // a partitioned export is a folder of name(Export).<shard>.<format> files
+            final String compressionSuffix = isGzip(params) ? ".gz" : "";
+            final String suffix = "." + format + compressionSuffix;
+            final String prefix = name.trim().concat("(Export)");
+            // every output is named after the prefix, which can't end in a . or .. segment
+            Path rootPath = root.getFolder().toPath().toAbsolutePath().normalize();
+            if (!Paths.get(folder, prefix).toAbsolutePath().normalize().startsWith(rootPath)) {
+                respondException(response, new ServletException("Export name '" + name + "' is outside the workspace"));
+                return;
+            }
+            final List<WorkspaceExportJob.FormatExport> formatExports = new ArrayList<>();
+            for (String f : exporters.keySet()) {
+                formatExports.add(new WorkspaceExportJob.FormatExport(f, prefix + "." + f + compressionSuffix));
+            }
+            if (exporters.size() > 1) {
+                name = formatExports.stream().map(f -> f.fileName).collect(Collectors.joining(", "));
+            } else {
+                name = partitioned ? prefix : prefix.concat(suffix);
             }
+            final Path filePath = Paths.get(folder, name);
 
-            if (exporter instanceof WriterExporter) {
-                String encoding = params.getProperty("encoding", "UTF-8");
-                Writer writer = new OutputStreamWriter(new FileOutputStream(filePath), encoding);
+            final WorkspaceExportJob job = WorkspaceExportJob.create(project.id, name);
+            final Engine engine = new RowCountingEngine(project, job.getRowCounter(), job::isCanceled);
+            final EngineConfig engineConfig = getEngineConfig(request);
+            if (engineConfig != null) {
+                engine.initializeFromConfig(engineConfig);
+            }
 
-                ((WriterExporter) exporter).export(project, params, engine, writer);
-                writer.close();
+            // files whose recorded state tells whether they can be kept
+            List<Path> outputs = new ArrayList<>();
+            Runnable export;
+            if (exporters.size() > 1) {
+                job.setFormats(formatExports);
+                for (WorkspaceExportJob.FormatExport formatExport : formatExports) {
+                    outputs.add(Paths.get(folder, formatExport.fileName));
+                }
+                export = () -> exportFormats(job, project, engineConfig, exporters, params, folder, root);
+            } else if (partitioned) {
+                outputs.add(filePath.resolve(prefix + WorkspaceExportShards.MANIFEST_SUFFIX));
+                export = () -> exportShards(job, project, engineConfig, exporter, params, filePath, prefix, suffix, shardRows, shardBytes);
+            } else {
+                outputs.add(filePath);
+                export = () -> export(job, project, engine, engineConfig, exporter, params, filePath);
+            }
+
+            boolean force = Boolean.parseBoolean(params.getProperty("force"));
+            // queued operations may still change the project
+            if (!force && !project.processManager.hasPending()
+                    && isUnchanged(outputs, WorkspaceExportState.describe(project, engineConfig, params))) {
+                for (WorkspaceExportJob.FormatExport formatExport : job.getFormats() == null
+                        ? Collections.<WorkspaceExportJob.FormatExport>emptyList() : job.getFormats()) {
+                    formatExport.finish(Files.size(Paths.get(folder, formatExport.fileName)));
+                }
+                job.reuse();
             } else {
-                respondException(response, new ServletException("Unknown exporter type"));
+                // waits for the operations already queued on the project, and holds back the ones queued after it
+                project.processManager.queueProcess(new WorkspaceExportProcess(job, project,
+                        WorkspaceScheduler.executor(root, WorkspaceScheduler.Kind.WRITE,
+                                WorkspaceScheduler.getUser(request), exportExecutor), export));
+                if (WorkspaceExportJob.STATE_ERROR.equals(job.getState())) {
+                    respondException(response, new ServletException(job.getError()));
+                    return;
+                }
             }
+
             response.setCharacterEncoding("UTF-8");
             response.setHeader("Content-Type", "application/json");
 
@@ -68,7 +187,20 @@ public class WorkspaceExportCommand extends Command {
 
             writer.writeStartObject();
             writer.writeStringField("code", "ok");
-            writer.writeStringField("message", "File '".concat(name).concat("' exported to the Workspace"));
+            writer.writeNumberField("jobID", job.id);
+            if (job.isReused()) {
+                writer.writeBooleanField("reused", true);
+                writer.writeStringField("message", "File '".concat(name).concat("' in the Workspace is up to date"));
+            } else {
+                writer.writeStringField("message", "File '".concat(name).concat("' export to the Workspace started"));
+            }
+            if (exporters.size() > 1) {
+                writer.writeArrayFieldStart("files");
+                for (WorkspaceExportJob.FormatExport formatExport : formatExports) {
+                    writer.writeString(formatExport.fileName);
+                }
+                writer.writeEndArray();
+            }
             writer.writeEndObject();
             writer.flush();
             w.flush();
@@ -77,8 +209,307 @@ public class WorkspaceExportCommand extends Command {
             // Use generic error handling rather than our JSON handling
             logger.info("error:{}", e.getMessage());
             throw new ServletException(e);
+        }
+    }
+
+    /**
+     * Both writer and stream exporters go through the same buffered output stream.
+     * Write the export next to its final name and rename it once complete, so a partial export is never picked up.
+     */
+    private void export(WorkspaceExportJob job, Project project, Engine engine, EngineConfig engineConfig,
+                        Exporter exporter, Properties params, Path filePath) {
+        job.start();
+        LocalFileSystemMetrics.record("export-queue", job.getWaitedMillis(), true);
+        LocalFileSystemMetrics.Timer timer = LocalFileSystemMetrics.start("export");
+        Path partialPath = filePath.resolveSibling("." + filePath.getFileName() + WorkspaceExportJob.PARTIAL_SUFFIX);
+
+        try {
+            writeExport(project, engine, exporter, params, partialPath);
+            if (job.isCanceled()) {
+                throw new IOException("Export canceled");
+            }
+            timer.written(Files.size(partialPath));
+            moveAtomically(partialPath, filePath);
+            WorkspaceExportState.record(filePath, WorkspaceExportState.describe(project, engineConfig, params));
+            job.finish();
+            timer.success();
+        } catch (Exception e) {
+            logger.error("Workspace export of " + filePath + " failed", e);
+            job.fail(e);
+            try {
+                Files.deleteIfExists(partialPath);
+            } catch (IOException e2) {
+                logger.warn("Cannot delete partial export " + partialPath);
+            }
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Export to several formats at once. One pass over the rows selected by the facets hands each of them to every
+     * exporter, each on its own thread writing its own file, with the time and rows of each format kept in the job.
+     * The job holds one WRITE slot of the root, another format is written at the same time for each slot nobody
+     * waits for; with fewer, the formats are written in groups of that size, one pass per group.
+     */
+    private void exportFormats(WorkspaceExportJob job, Project project, EngineConfig engineConfig,
+                               Map<String, Exporter> exporters, Properties params, String folder, WorkspaceRoot root) {
+        job.start();
+        LocalFileSystemMetrics.record("export-queue", job.getWaitedMillis(), true);
+        LocalFileSystemMetrics.Timer timer = LocalFileSystemMetrics.start("export");
+        List<WorkspaceScheduler.Permit> permits = new ArrayList<>();
+
+        try {
+            final ObjectNode state = WorkspaceExportState.describe(project, engineConfig, params);
+            List<WorkspaceExportJob.FormatExport> formats = job.getFormats();
+            WorkspaceScheduler.Permit permit;
+            while (permits.size() < formats.size() - 1
+                    && (permit = WorkspaceScheduler.tryAcquire(root, WorkspaceScheduler.Kind.WRITE)) != null) {
+                permits.add(permit);
+            }
+            int width = permits.size() + 1;
+            for (int i = 0; i < formats.size() && !job.isCanceled(); i += width) {
+                writeFormats(job, project, engineConfig, formats.subList(i, Math.min(formats.size(), i + width)),
+                        exporters, params, state, folder);
+            }
+            if (job.isCanceled()) {
+                throw new IOException("Export canceled");
+            }
+
+            List<String> errors = new ArrayList<>();
+            for (WorkspaceExportJob.FormatExport formatExport : formats) {
+                timer.written(formatExport.getBytes());
+                if (formatExport.getError() != null) {
+                    errors.add(formatExport.format + ": " + formatExport.getError());
+                }
+            }
+            if (!errors.isEmpty()) {
+                throw new IOException("Export failed for " + String.join(", ", errors));
+            }
+            job.finish();
+            timer.success();
+        } catch (Exception e) {
+            logger.error("Workspace export of " + job.fileName + " failed", e);
+            job.fail(e);
+        } finally {
+            for (WorkspaceScheduler.Permit permit : permits) {
+                permit.close();
+            }
+            timer.stop();
+        }
+    }
+
+    /**
+     * Write {@code formats} from a single pass over the selected rows, fed to their exporters running at the same
+     * time. A failure of a format is kept in it.
+     */
+    private void writeFormats(WorkspaceExportJob job, Project project, EngineConfig engineConfig,
+                              List<WorkspaceExportJob.FormatExport> formats, Map<String, Exporter> exporters,
+                              Properties params, ObjectNode state, String folder) throws Exception {
+        final List<WorkspaceExportFeed> feeds = new ArrayList<>();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (WorkspaceExportJob.FormatExport formatExport : formats) {
+            final WorkspaceExportFeed feed = new WorkspaceExportFeed();
+            feeds.add(feed);
+            tasks.add(() -> {
+                exportFormat(job, formatExport, project, engineConfig, feed, exporters.get(formatExport.format),
+                        params, state, Paths.get(folder, formatExport.fileName));
+                return null;
+            });
+        }
+        final Engine engine = new Engine(project);
+        if (engineConfig != null) {
+            engine.initializeFromConfig(engineConfig);
+        }
+        tasks.add(0, () -> {
+            WorkspaceExportFeed.feed(project, engine, feeds, job::isCanceled);
+            return null;
+        });
+        LocalImportingUtilities.runAll(tasks, tasks.size(), "workspace-export-format");
+    }
+
+    /**
+     * Write one format of an export to several formats from {@code feed}, a failure is kept in {@code formatExport}.
+     */
+    private void exportFormat(WorkspaceExportJob job, WorkspaceExportJob.FormatExport formatExport, Project project,
+                              EngineConfig engineConfig, WorkspaceExportFeed feed, Exporter exporter,
+                              Properties params, ObjectNode state, Path filePath) {
+        formatExport.start();
+        Path partialPath = filePath.resolveSibling("." + filePath.getFileName() + WorkspaceExportJob.PARTIAL_SUFFIX);
+        try {
+            Engine engine = new RowCountingEngine(project, formatExport.getRowCounter(), job::isCanceled, feed);
+            if (engineConfig != null) {
+                engine.initializeFromConfig(engineConfig);
+            }
+            writeExport(project, engine, exporter, params, partialPath);
+            if (job.isCanceled()) {
+                throw new IOException("Export canceled");
+            }
+            long bytes = Files.size(partialPath);
+            moveAtomically(partialPath, filePath);
+            WorkspaceExportState.record(filePath, state);
+            formatExport.finish(bytes);
+        } catch (Exception e) {
+            logger.error("Workspace export of " + filePath + " failed", e);
+            formatExport.fail(e);
+            try {
+                Files.deleteIfExists(partialPath);
+            } catch (IOException e2) {
+                logger.warn("Cannot delete partial export " + partialPath);
+            }
+        } finally {
+            // the pass goes on for the other formats
+            feed.close();
+        }
+    }
+
+    /**
+     * Write the shards of a partitioned export in parallel to a hidden folder renamed once the manifest is written.
+     * Each shard is a complete export, with its own header.
+     */
+    private void exportShards(WorkspaceExportJob job, Project project, EngineConfig engineConfig, Exporter exporter,
+                              Properties params, Path folderPath, String prefix, String suffix,
+                              long shardRows, long shardBytes) {
+        job.start();
+        LocalFileSystemMetrics.record("export-queue", job.getWaitedMillis(), true);
+        LocalFileSystemMetrics.Timer timer = LocalFileSystemMetrics.start("export");
+        Path partialPath = folderPath.resolveSibling("." + folderPath.getFileName() + WorkspaceExportJob.PARTIAL_SUFFIX);
+
+        try {
+            WorkspaceExportShards.delete(partialPath);
+            Files.createDirectories(partialPath);
+            int concurrency = getInt(params, "concurrency", SHARD_CONCURRENCY);
+            long bytes = WorkspaceExportShards.write(project, engineConfig, job, shardRows, shardBytes, concurrency,
+                    partialPath, prefix, suffix,
+                    (engine, path, digest) -> writeExport(project, engine, exporter, params, path, digest));
+            timer.written(bytes);
+            replaceFolder(partialPath, folderPath);
+            WorkspaceExportState.record(folderPath.resolve(prefix + WorkspaceExportShards.MANIFEST_SUFFIX),
+                    WorkspaceExportState.describe(project, engineConfig, params));
+            job.finish();
+            timer.success();
+        } catch (Exception e) {
+            logger.error("Workspace export of " + folderPath + " failed", e);
+            job.fail(e);
+            WorkspaceExportShards.delete(partialPath);
         } finally {
-            ProjectManager.singleton.setBusy(false);
+            timer.stop();
+        }
+    }
+
+    /**
+     * Write the rows of {@code engine} with {@code exporter} to {@code path}.
+     */
+    static void writeExport(Project project, Engine engine, Exporter exporter, Properties params, Path path)
+            throws IOException {
+        writeExport(project, engine, exporter, params, path, null);
+    }
+
+    /**
+     * @param digest digest of the bytes written to the file, null for none
+     */
+    static void writeExport(Project project, Engine engine, Exporter exporter, Properties params, Path path,
+                            MessageDigest digest) throws IOException {
+        try (OutputStream outputStream = new BufferedOutputStream(openOutputStream(path, params, digest), BUFFER_SIZE)) {
+            if (exporter instanceof WriterExporter) {
+                String encoding = params.getProperty("encoding", "UTF-8");
+                Writer writer = new OutputStreamWriter(outputStream, encoding);
+                ((WriterExporter) exporter).export(project, params, engine, writer);
+                writer.flush();
+            } else {
+                ((StreamExporter) exporter).export(project, params, engine, outputStream);
+            }
+        }
+    }
+
+    private static boolean isUnchanged(List<Path> outputs, ObjectNode state) {
+        for (Path output : outputs) {
+            if (!WorkspaceExportState.isUnchanged(output, state)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isGzip(Properties params) {
+        String compression = params.getProperty("compression", COMPRESSION);
+        return "gzip".equalsIgnoreCase(compression) || "gz".equalsIgnoreCase(compression);
+    }
+
+    /**
+     * The file stream, wrapped in a gzip compressor when requested so nothing uncompressed reaches the disk.
+     * It writes no faster than the bandwidth cap of the workspace root of {@code path}.
+     */
+    private static OutputStream openOutputStream(Path path, Properties params, MessageDigest digest) throws IOException {
+        OutputStream outputStream = Files.newOutputStream(path);
+        WorkspaceRoot root = WorkspaceRoot.of(path.toFile());
+        if (root != null) {
+            outputStream = root.getBandwidth().throttle(outputStream);
+        }
+        if (digest != null) {
+            outputStream = new DigestOutputStream(outputStream, digest);
+        }
+        if (!isGzip(params)) {
+            return outputStream;
+        }
+
+        int compressionLevel = getInt(params, "compressionLevel", COMPRESSION_LEVEL);
+        final int level = compressionLevel == Deflater.DEFAULT_COMPRESSION ? compressionLevel
+                : Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, compressionLevel));
+        int bufferSize = Math.max(512, getInt(params, "compressionBuffer", COMPRESSION_BUFFER_SIZE));
+        try {
+            return new GZIPOutputStream(outputStream, bufferSize) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        } catch (IOException e) {
+            outputStream.close();
+            throw e;
+        }
+    }
+
+    private static int getInt(Properties params, String name, int defaultValue) {
+        try {
+            return Integer.parseInt(params.getProperty(name, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static long getLong(Properties params, String name, long defaultValue) {
+        try {
+            return Long.parseLong(params.getProperty(name, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Put {@code source} in place of the {@code target} folder. The previous folder is moved aside first and
+     * only deleted once the new one is in place, so a crash never leaves neither of them.
+     */
+    private static void replaceFolder(Path source, Path target) throws IOException {
+        if (!Files.exists(target)) {
+            moveAtomically(source, target);
+            return;
+        }
+        Path replaced = target.resolveSibling("." + target.getFileName() + ".replaced-" + System.nanoTime());
+        moveAtomically(target, replaced);
+        try {
+            moveAtomically(source, target);
+        } catch (IOException e) {
+            moveAtomically(replaced, target);
+            throw e;
+        }
+        WorkspaceExportShards.delete(replaced);
+    }
+
+    private static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
         }
     }
 }
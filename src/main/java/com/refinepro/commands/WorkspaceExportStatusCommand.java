@@ -0,0 +1,72 @@
+package com.refinepro.commands;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.refine.commands.Command;
+import com.refinepro.WorkspaceExportJob;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reports the state and rows written of a workspace export, or of every known export when no jobID is given.
+ */
+public class WorkspaceExportStatusCommand extends Command {
+
+    protected static class StatusResponse {
+        @JsonProperty("code")
+        protected String code;
+        @JsonProperty("message")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        protected String message;
+        @JsonProperty("job")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        protected WorkspaceExportJob job;
+        @JsonProperty("jobs")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        protected List<WorkspaceExportJob> jobs;
+
+        protected StatusResponse(String code, String message, WorkspaceExportJob job, List<WorkspaceExportJob> jobs) {
+            this.code = code;
+            this.message = message;
+            this.job = job;
+            this.jobs = jobs;
+        }
+    }
+
+    @Override
+    public void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        doPost(request, response);
+    }
+
+    /**
+     * This command uses POST but does not actually modify any state so
+     * it is not CSRF-protected.
+     */
+    @Override
+    public void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+
+        String jobID = request.getParameter("jobID");
+        if (jobID == null || jobID.isEmpty()) {
+            respondJSON(response, new StatusResponse("ok", null, null, WorkspaceExportJob.getAll()));
+            return;
+        }
+
+        WorkspaceExportJob job;
+        try {
+            job = WorkspaceExportJob.get(Long.parseLong(jobID));
+        } catch (NumberFormatException e) {
+            job = null;
+        }
+        if (job == null) {
+            respondJSON(response, new StatusResponse("error", "No such export job", null, null));
+        } else {
+            respondJSON(response, new StatusResponse("ok", null, job, null));
+        }
+    }
+}
@@ -22,6 +22,13 @@ function init() {
 		new Packages.com.refinepro.LocalFileSystemImportingController()
 	);
 	refineServlet.registerCommand(module, "workspace-export", new Packages.com.refinepro.commands.WorkspaceExportCommand());
+	refineServlet.registerCommand(module, "workspace-export-status", new Packages.com.refinepro.commands.WorkspaceExportStatusCommand());
+	refineServlet.registerCommand(module, "metrics", new Packages.com.refinepro.commands.LocalFileSystemMetricsCommand());
+	refineServlet.registerCommand(module, "append-rows", new Packages.com.refinepro.commands.AppendRowsCommand());
+	refineServlet.registerCommand(module, "watch-status", new Packages.com.refinepro.commands.WatchStatusCommand());
+
+	// history entries load their change by class name, the extension classes are not visible to the core class loader
+	refineServlet.cacheClass(Packages.com.refinepro.RowAppendChange);
 
 	// Script files to inject into /index page
 	ClientSideResourceManager.addPaths(
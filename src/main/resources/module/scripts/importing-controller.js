@@ -12,7 +12,8 @@ Refine.LocalFileSystemImportingController = function (createProjectUI) {
 };
 Refine.CreateProjectUI.controllers.push(Refine.LocalFileSystemImportingController);
 
-Refine.LocalFileSystemImportingController.prototype = Refine.DefaultImportingController.prototype;
+// a prototype of its own, so the methods below don't replace those of the default controller
+Refine.LocalFileSystemImportingController.prototype = Object.create(Refine.DefaultImportingController.prototype);
 
 Refine.LocalFileSystemImportingController.prototype._startImportJob = function (form, progressMessage, callback) {
     var self = this;
@@ -23,6 +24,7 @@ Refine.LocalFileSystemImportingController.prototype._startImportJob = function (
             {csrf_token: token},
             function (data) {
                 var jobID = self._jobID = data.jobID;
+                delete self._revisions;
 
                 form.attr("method", "post")
                     .attr("accept-charset", "UTF-8")
@@ -77,3 +79,44 @@ Refine.LocalFileSystemImportingController.prototype._startImportJob = function (
         );
     });
 };
+
+// the file selection goes to this controller, which answers with a compact job: the config fields that did not
+// change since the revisions passed back as "since" are left out and kept from the job already loaded
+Refine.LocalFileSystemImportingController.prototype._commitFileSelection = function () {
+    var self = this;
+
+    Refine.wrapCSRF(function (token) {
+        $.post(
+            "command/core/importing-controller?" + $.param({
+                "controller": "local-file-system/local-file-importing-controller",
+                "jobID": self._jobID,
+                "subCommand": "update-file-selection",
+                "compact": true,
+                "since": JSON.stringify(self._revisions || {}),
+                "csrf_token": token
+            }),
+            {
+                "fileSelection": JSON.stringify(self._job.config.fileSelection)
+            },
+            function (data) {
+                if (!(data)) {
+                    self._createProjectUI.showImportJobError("Unknown error");
+                } else if (data.code == "error" || !("job" in data)) {
+                    self._createProjectUI.showImportJobError((data.message) ? ("Error: " + data.message) : "Unknown error");
+                } else {
+                    var config = data.job.config;
+                    $.each(data.job.unchanged || [], function (i, field) {
+                        config[field] = self._job.config[field];
+                    });
+                    self._revisions = data.job.revisions;
+
+                    // different files might be selected, start over again
+                    delete self._parserOptions;
+                    self._job = {config: config};
+                    self._showParsingPanel(true);
+                }
+            },
+            "json"
+        );
+    });
+};
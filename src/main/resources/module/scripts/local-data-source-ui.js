@@ -9,13 +9,34 @@ Refine.LocalDataSourceUI.prototype.attachUI = function (body) {
     this._elmts = DOM.bind(this._body);
     var self = this;
 
-    this._listDocuments();
+    this._listDocuments(0);
+
+    var timerID = null;
+    this._elmts.patternInput.on("input", function () {
+        window.clearTimeout(timerID);
+        timerID = window.setTimeout(function () {
+            self._listDocuments(0);
+        }, 300);
+    });
+    this._elmts.rootSelect.change(function () {
+        self._listDocuments(0);
+    });
+    this._elmts.sortSelect.change(function () {
+        self._listDocuments(0);
+    });
+    this._elmts.recursiveCheckbox.change(function () {
+        self._listDocuments(0);
+    });
+    this._elmts.moreButton.click(function () {
+        self._listDocuments(self._loadedCount);
+    });
 
     this._elmts.nextButton.html($.i18n('core-buttons/next'));
     this._elmts.nextButton.click(function (evt) {
         var e = document.getElementById("localFile");
-        var optionSelIndex = e.options[e.selectedIndex].value;
-        if (optionSelIndex == 0) {
+        var importAll = self._elmts.importAllCheckbox.prop("checked");
+        self._elmts.localPatternInput.val(importAll ? self._getImportPattern() : "");
+        if (!importAll && (!e || $(e).val() === null || $(e).val().length === 0)) {
             window.alert($.i18n('core-index-import/warning-data-file'));
         } else {
             self._controller._startImportJob(self._elmts.form, $.i18n('core-index-import/uploading-data'));
@@ -27,9 +48,17 @@ Refine.LocalDataSourceUI.prototype.attachUI = function (body) {
 Refine.LocalDataSourceUI.prototype.focus = function () {
 };
 
-Refine.LocalDataSourceUI.prototype._listDocuments = function () {
+Refine.LocalDataSourceUI.prototype._getImportPattern = function () {
+    var pattern = $.trim(this._elmts.patternInput.val()) || "*";
+    return this._elmts.recursiveCheckbox.prop("checked") ? "**/" + pattern : pattern;
+};
+
+Refine.LocalDataSourceUI.pageSize = 500;
+
+Refine.LocalDataSourceUI.prototype._listDocuments = function (offset) {
 
     var self = this;
+    var sort = this._elmts.sortSelect.val();
     Refine.wrapCSRF(function (token) {
         $.post(
             "command/core/importing-controller?" + $.param({
@@ -37,16 +66,38 @@ Refine.LocalDataSourceUI.prototype._listDocuments = function () {
                 "subCommand": "list-documents",
                 "csrf_token": token
             }),
-            null,
+            {
+                "root": self._elmts.rootSelect.val() || "",
+                "pattern": self._elmts.patternInput.val(),
+                "sort": sort,
+                "order": sort === "name" ? "asc" : "desc",
+                "recursive": self._elmts.recursiveCheckbox.prop("checked"),
+                "offset": offset,
+                "limit": Refine.LocalDataSourceUI.pageSize
+            },
             function (o) {
-                self._renderDocuments(o);
+                self._renderDocuments(o, offset);
             },
             "json"
         );
     });
 };
 
-Refine.LocalDataSourceUI.prototype._renderDocuments = function (o) {
+Refine.LocalDataSourceUI.prototype._renderRoots = function (o) {
+    var select = this._elmts.rootSelect;
+    if (!o.roots || select.children().length === o.roots.length) {
+        return;
+    }
+    select.empty();
+    for (var i = 0; i < o.roots.length; i++) {
+        $("<option>").attr("value", o.roots[i]).text(o.roots[i]).appendTo(select);
+    }
+    select.val(o.root);
+    // a single root needs no choice
+    select.toggle(o.roots.length > 1);
+};
+
+Refine.LocalDataSourceUI.prototype._renderDocuments = function (o, offset) {
     var self = this;
 
     if (!o.documents) {
@@ -54,24 +105,121 @@ Refine.LocalDataSourceUI.prototype._renderDocuments = function (o) {
     }
 
     document.getElementById("local-data-title").innerHTML = "Workspace files from '" + o.localPath + "'";
-    this._elmts.listingContainer.empty();
-
-    var select = $(
-        '<select id="localFile" name="localFile" required><option label="Select file..."/></select>'
-    ).appendTo(this._elmts.listingContainer)[0];
+    this._renderRoots(o);
+
+    var select = document.getElementById("localFile");
+    if (offset === 0 || !select) {
+        this._elmts.listingContainer.empty();
+        this._loadedCount = 0;
+        this._options = {};
+        this._listingGeneration = (this._listingGeneration || 0) + 1;
+        select = $(
+            '<select id="localFile" name="localFile" multiple size="15"></select>'
+        ).appendTo(this._elmts.listingContainer)[0];
+    }
 
+    var pending = [];
     var renderDocument = function (doc) {
         var option = document.createElement("option");
-        option.text = doc.name;
         option.value = doc.localPath;
+        option.text = Refine.LocalDataSourceUI.describe(doc, doc.metadata);
+        $(option).data("doc", doc);
         select.add(option);
-
+        self._options[doc.localPath] = option;
+        if (doc.metadata && doc.metadata.state === "pending") {
+            pending.push(doc.localPath);
+        }
     };
 
     var docs = o.documents;
     for (var i = 0; i < docs.length; i++) {
         renderDocument(docs[i]);
     }
+    this._loadedCount += docs.length;
+    this._pollMetadata(pending, this._listingGeneration, 0);
 
+    this._elmts.listingStatus.text(this._loadedCount + " of " + o.total + " files");
+    this._elmts.moreButton.toggle(this._loadedCount < o.total);
+
+};
+
+Refine.LocalDataSourceUI.metadataPollDelay = 1000;
+Refine.LocalDataSourceUI.metadataPollAttempts = 60;
+
+Refine.LocalDataSourceUI.formatSize = function (size) {
+    var units = ["B", "KB", "MB", "GB", "TB"];
+    var unit = 0;
+    while (size >= 1024 && unit < units.length - 1) {
+        size /= 1024;
+        unit++;
+    }
+    return (unit === 0 ? size : size.toFixed(1)) + " " + units[unit];
+};
+
+Refine.LocalDataSourceUI.describe = function (doc, metadata) {
+    var details = [Refine.LocalDataSourceUI.formatSize(doc.size)];
+    if (doc.modified) {
+        details.push(new Date(doc.modified).toLocaleString());
+    }
+    if (metadata && metadata.state === "pending") {
+        details.push("...");
+    } else if (metadata) {
+        if (metadata.format) {
+            details.push(metadata.format);
+        }
+        if (metadata.encoding) {
+            details.push(metadata.encoding);
+        }
+        if (metadata.rows !== undefined) {
+            details.push(metadata.rows + " lines");
+        } else if (metadata.estimatedRows !== undefined) {
+            details.push("~" + metadata.estimatedRows + " lines");
+        }
+    }
+    return doc.name + " (" + details.join(", ") + ")";
 };
 
+/*
+ * The listing answers with placeholders for files not sniffed yet, ask again until they are ready.
+ * A new listing bumps the generation so polls of the previous one stop.
+ */
+Refine.LocalDataSourceUI.prototype._pollMetadata = function (paths, generation, attempt) {
+    var self = this;
+    if (paths.length === 0 || attempt >= Refine.LocalDataSourceUI.metadataPollAttempts) {
+        return;
+    }
+
+    window.setTimeout(function () {
+        if (generation !== self._listingGeneration) {
+            return;
+        }
+        Refine.wrapCSRF(function (token) {
+            $.post(
+                "command/core/importing-controller?" + $.param({
+                    "controller": "local-file-system/local-file-importing-controller",
+                    "subCommand": "file-metadata",
+                    "csrf_token": token
+                }),
+                $.param({"root": self._elmts.rootSelect.val() || "", "localFile": paths}, true),
+                function (o) {
+                    if (generation !== self._listingGeneration || !o.documents) {
+                        return;
+                    }
+                    var pending = [];
+                    for (var i = 0; i < o.documents.length; i++) {
+                        var doc = o.documents[i];
+                        var option = self._options[doc.localPath];
+                        if (option) {
+                            option.text = Refine.LocalDataSourceUI.describe($(option).data("doc"), doc.metadata);
+                        }
+                        if (doc.metadata.state === "pending") {
+                            pending.push(doc.localPath);
+                        }
+                    }
+                    self._pollMetadata(pending, generation, attempt + 1);
+                },
+                "json"
+            );
+        });
+    }, Refine.LocalDataSourceUI.metadataPollDelay);
+};
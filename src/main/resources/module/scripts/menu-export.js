@@ -6,29 +6,119 @@ ExporterManager.MenuItems.push(
         "id": "exportWorkspaceData",
         "label": 'CSV to Workspace Data',
         "click": function () {
-            WorkspaceDataExporterMenuBar.exportCSV("csv", "csv");
+            WorkspaceDataExporterMenuBar.exportToWorkspace("csv");
+        }
+    },
+    {
+        "id": "exportWorkspaceDataCsvGzip",
+        "label": 'CSV (gzip) to Workspace Data',
+        "click": function () {
+            WorkspaceDataExporterMenuBar.exportToWorkspace("csv", "gzip");
+        }
+    },
+    {
+        "id": "exportWorkspaceDataTsv",
+        "label": 'TSV to Workspace Data',
+        "click": function () {
+            WorkspaceDataExporterMenuBar.exportToWorkspace("tsv");
+        }
+    },
+    {
+        "id": "exportWorkspaceDataXlsx",
+        "label": 'Excel 2007+ to Workspace Data',
+        "click": function () {
+            WorkspaceDataExporterMenuBar.exportToWorkspace("xlsx");
+        }
+    },
+    {
+        "id": "exportWorkspaceDataOds",
+        "label": 'ODF spreadsheet to Workspace Data',
+        "click": function () {
+            WorkspaceDataExporterMenuBar.exportToWorkspace("ods");
+        }
+    },
+    {},
+    {
+        "id": "appendWorkspaceRows",
+        "label": 'Append new rows from Workspace file',
+        "click": function () {
+            WorkspaceDataExporterMenuBar.appendRows();
         }
     }
 );
 
 WorkspaceDataExporterMenuBar = {};
 
-WorkspaceDataExporterMenuBar.exportCSV = function (format, ext) {
+WorkspaceDataExporterMenuBar.exportToWorkspace = function (format, compression) {
     var name = encodeURI(ExporterManager.stripNonFileChars(theProject.metadata.name));
+    var params = {
+        project: theProject.id,
+        name: name,
+        format: format,
+        quoteAll: true,
+        engine: JSON.stringify(ui.browsingEngine.getJSON())
+    };
+    if (compression) {
+        params.compression = compression;
+    }
 
     $.ajax({
-        url: 'command/local-file-system/workspace-export?' + $.param({
-            project: theProject.id,
-            name: name,
-            format: format,
-            quoteAll: true,
-            engine: JSON.stringify(ui.browsingEngine.getJSON())
-        }),
+        url: 'command/local-file-system/workspace-export?' + $.param(params),
         type: "POST",
         success: function (response) {
-            alert(response.message)
+            if (response.code !== "ok") {
+                alert(response.message);
+                return;
+            }
+            if (response.reused) {
+                alert(response.message);
+                return;
+            }
+            WorkspaceDataExporterMenuBar.pollExport(response.jobID);
         },
     });
 };
 
+WorkspaceDataExporterMenuBar.pollExport = function (jobID) {
+    $.post(
+        'command/local-file-system/workspace-export-status?' + $.param({jobID: jobID}),
+        null,
+        function (response) {
+            var job = response.job;
+            if (!job) {
+                alert(response.message);
+            } else if (job.state === "done") {
+                alert("File '" + job.fileName + "' exported to the Workspace (" + job.rowsWritten + " rows)");
+            } else if (job.state === "error") {
+                alert("Export of '" + job.fileName + "' failed: " + job.error);
+            } else {
+                window.setTimeout(function () {
+                    WorkspaceDataExporterMenuBar.pollExport(jobID);
+                }, 1000);
+            }
+        },
+        "json"
+    );
+};
+
+
 
+WorkspaceDataExporterMenuBar.appendRows = function () {
+    Refine.postProcess(
+        "local-file-system",
+        "append-rows",
+        {},
+        {},
+        {rowsChanged: true},
+        {
+            onDone: function (response) {
+                if (response.rowsAppended === 0) {
+                    alert("No new rows in the Workspace file");
+                }
+            },
+            onError: function (response) {
+                alert(response.message);
+            }
+        }
+    );
+};